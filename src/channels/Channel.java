@@ -1,59 +1,150 @@
 package channels;
 
 import message.Message;
+import utils.BufferPool;
+import utils.Scheduler;
 import utils.Utils;
 import user_interface.UI;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.InetAddress;
-import java.net.MulticastSocket;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Enumeration;
+import java.util.function.LongConsumer;
 
-import static utils.Utils.MAX_MESSAGE_SIZE;
-import static utils.Utils.MAX_THREADS;
-
-public class Channel implements Runnable{
+public class Channel {
 
     private String type;
     private InetAddress address;
     private int port;
-    private MessageHandler messageHandler;
+    private InetSocketAddress group;
 
-    private MulticastSocket multicastSocket;
-    private ScheduledExecutorService scheduledExecutorService = Executors.newScheduledThreadPool(MAX_THREADS);
-    boolean isActive;
+    private DatagramChannel receiveChannel;
+    private DatagramChannel sendChannel;
+    private ChannelSender sender;
+    private RttEstimator rttEstimator = new RttEstimator();
+    private Pacer pacer = null;
+    private Scheduler scheduler;
 
-    public Channel(String type, String address, int port, MessageHandler messageHandler) throws IOException {
+    public Channel(String type, String address, int port, Scheduler scheduler) throws IOException {
         this.type = type;
+        this.scheduler = scheduler;
         this.address = InetAddress.getByName(address);
         this.port = port;
-        this.messageHandler = messageHandler;
-        isActive = true;
+        this.group = new InetSocketAddress(this.address, port);
+
+        NetworkInterface networkInterface = getMulticastInterface();
+
+        receiveChannel = DatagramChannel.open(StandardProtocolFamily.INET)
+                .setOption(StandardSocketOptions.SO_REUSEADDR, true)
+                .bind(new InetSocketAddress(port));
+        receiveChannel.join(this.address, networkInterface);
+        receiveChannel.configureBlocking(false);
 
-        multicastSocket = new MulticastSocket(port);
-        multicastSocket.setTimeToLive(1);
-        multicastSocket.joinGroup(this.address);
+        sendChannel = DatagramChannel.open(StandardProtocolFamily.INET)
+                .setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface)
+                .setOption(StandardSocketOptions.IP_MULTICAST_TTL, 1)
+                .setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+
+        sender = new ChannelSender(this, sendChannel, group);
+        sender.start(type + "-sender");
 
         UI.printBoot("Joined " + type + " on " + address + " at port " + port);
     }
 
-    @Override
-    public void run() {
-        byte[] packet = new byte[MAX_MESSAGE_SIZE];
-        DatagramPacket multicastPacket = new DatagramPacket(packet, packet.length);
-        while(isActive) {
-            try {
-                multicastSocket.receive(multicastPacket);
-                Message message = new Message(multicastPacket.getData(), multicastPacket.getLength());
-                messageHandler.handleMessage(message, multicastPacket.getAddress());
-            } catch (IOException e) {
-                UI.printError("Failed to receive message in " + type + " on port " + port);
-                e.printStackTrace();
+    /**
+     * Picks the interface used to join the multicast group. Prefers the interface of the local host address and falls
+     * back to the first active interface that supports multicast.
+     *
+     * @return the network interface
+     */
+    private static NetworkInterface getMulticastInterface() throws IOException {
+        NetworkInterface networkInterface = NetworkInterface.getByInetAddress(InetAddress.getLocalHost());
+        if (networkInterface != null && networkInterface.isUp() && networkInterface.supportsMulticast()) {
+            return networkInterface;
+        }
+
+        NetworkInterface loopback = null;
+        Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+        while (interfaces.hasMoreElements()) {
+            NetworkInterface candidate = interfaces.nextElement();
+            if (!candidate.isUp() || !candidate.supportsMulticast()) {
+                continue;
+            }
+            if (!candidate.isLoopback()) {
+                return candidate;
             }
+            loopback = candidate;
         }
+
+        if (loopback == null) {
+            throw new SocketException("No multicast capable network interface found");
+        }
+        return loopback;
+    }
+
+    /**
+     * Registers the receiving side of the channel in the selector, for read events.
+     *
+     * @param selector - the selector multiplexing the channels
+     */
+    void register(Selector selector) throws IOException {
+        receiveChannel.register(selector, SelectionKey.OP_READ, this);
+    }
+
+    /**
+     * Receives a pending datagram without blocking.
+     *
+     * @param buffer - the buffer to be filled
+     * @return the source address or null if there was nothing to be received
+     */
+    SocketAddress receive(ByteBuffer buffer) throws IOException {
+        return receiveChannel.receive(buffer);
+    }
+
+    /**
+     * Retrieves the round-trip estimate of the protocols that wait for replies to the messages sent on this channel.
+     *
+     * @return the round-trip estimator
+     */
+    public RttEstimator getRttEstimator() {
+        return rttEstimator;
+    }
+
+    /**
+     * Paces the messages sent on this channel. Channels without a pacer send as fast as they are asked to.
+     *
+     * @param pacer - the pacer
+     */
+    public void setPacer(Pacer pacer) {
+        this.pacer = pacer;
+    }
+
+    /**
+     * @return the pacer of the channel or null if it is not paced
+     */
+    public Pacer getPacer() {
+        return pacer;
+    }
+
+    /**
+     * Retrieves the number of messages waiting to be sent on this channel, to detect send-side saturation.
+     *
+     * @return the send queue depth
+     */
+    public int getQueueDepth() {
+        return sender.getQueueDepth();
+    }
+
+    String getType() {
+        return type;
+    }
+
+    int getPort() {
+        return port;
     }
 
     /**
@@ -66,26 +157,84 @@ public class Channel implements Runnable{
     }
 
     /**
-     * Sends a message through the multicastSocket.
+     * Queues a message to be sent to the multicast group. The packet is encoded right away, so the caller may release
+     * the message as soon as this returns, and it is sent by the channel sender thread, paced if the channel is.
      *
      * @param message the message to be sent
      */
     public void sendMessage(Message message, boolean sendBody) {
-        byte[] packet = message.getPacket(sendBody);
+        sendMessage(message, sendBody, null);
+    }
 
-        try {
-            this.multicastSocket.send(new DatagramPacket(packet, packet.length, address, port));
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    /**
+     * Queues a message to be sent with its body and reports when it actually leaves the sender, after any wait in the
+     * send queue or for the pacer, so retransmission timers and round-trip samples start from the real send time.
+     *
+     * @param message - the message to be sent
+     * @param onSent - called by the channel sender thread with the time the message was sent
+     */
+    public void sendMessage(Message message, LongConsumer onSent) {
+        sendMessage(message, true, onSent);
+    }
+
+    /**
+     * Queues a message to be sent, blocking while the send queue of the channel is full. Must never be called on a
+     * state shard: shards hand their sends to the workers, or send in a place reserved beforehand.
+     *
+     * @param message - the message to be sent
+     * @param sendBody - true if the body is sent
+     * @param onSent - called with the send time, or null
+     */
+    private void sendMessage(Message message, boolean sendBody, LongConsumer onSent) {
+        sender.reserve();
+        enqueue(message, sendBody, onSent);
+    }
+
+    /**
+     * Reserves a place in the send queue of the channel, blocking while it is full, for a message sent later with
+     * sendReserved. Lets an initiator wait for the channel on its own thread before handing the send to a shard.
+     */
+    public void reserve() {
+        sender.reserve();
+    }
+
+    /**
+     * Queues a message with its body in a place reserved with reserve. Never blocks, so shards may call it.
+     *
+     * @param message - the message to be sent
+     */
+    public void sendReserved(Message message) {
+        enqueue(message, true, null);
+    }
+
+    /**
+     * Queues a message with its body in a place reserved with reserve, reporting when it actually leaves the sender.
+     * Never blocks, so shards may call it.
+     *
+     * @param message - the message to be sent
+     * @param onSent - called by the channel sender thread with the time the message was sent
+     */
+    public void sendReserved(Message message, LongConsumer onSent) {
+        enqueue(message, true, onSent);
+    }
+
+    private void enqueue(Message message, boolean sendBody, LongConsumer onSent) {
+        byte[] packet = BufferPool.acquire();
+        int length = message.writePacket(packet, 0, sendBody);
+        sender.enqueue(packet, length, onSent);
     }
 
     /**
-     * Schedules a message to be sent after a random delay.
+     * Schedules a message to be sent after a random delay. The encoded packet waits on the timer wheel and is handed
+     * to the channel sender when it is due. Its place in the send queue is reserved by the caller, which may block, so
+     * the timer wheel never waits for it.
      * @param max - the max delay
      * @param message - the message to be sent
      */
     void sendWithRandomDelay(int max, Message message) {
-        scheduledExecutorService.schedule(() -> sendMessage(message), Utils.getRandom(0, max), TimeUnit.MILLISECONDS);
+        sender.reserve();
+        byte[] packet = BufferPool.acquire();
+        int length = message.writePacket(packet, 0, true);
+        scheduler.schedule(() -> sender.enqueue(packet, length, null), Utils.getRandom(0, max));
     }
 }
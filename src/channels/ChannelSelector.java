@@ -0,0 +1,117 @@
+package channels;
+
+import message.Message;
+import user_interface.UI;
+import utils.BufferPool;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+
+public class ChannelSelector implements Runnable {
+
+    private Selector selector;
+    private MessageHandler messageHandler;
+    private boolean isActive;
+
+    public ChannelSelector(MessageHandler messageHandler) throws IOException {
+        this.messageHandler = messageHandler;
+        this.selector = Selector.open();
+        isActive = true;
+    }
+
+    /**
+     * Registers a channel so that its multicast group is served by this selector's I/O thread.
+     *
+     * @param channel - the channel to be registered
+     */
+    public void register(Channel channel) throws IOException {
+        channel.register(selector);
+        selector.wakeup();
+    }
+
+    /**
+     * Multiplexes every registered multicast group on a single thread.
+     * Each readable channel is drained until it has no pending datagrams, and every decoded message is handed off to
+     * the message handler, which runs the protocol on its own workers.
+     */
+    @Override
+    public void run() {
+        while (isActive) {
+            try {
+                selector.select();
+            } catch (IOException | ClosedSelectorException e) {
+                UI.printError("Failed to select multicast channels");
+                e.printStackTrace();
+                return;
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                if (key.isValid() && key.isReadable()) {
+                    drain((Channel) key.attachment());
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads every datagram currently queued on the channel.
+     * Datagrams are received straight into buffers borrowed from the BufferPool. Ownership of each buffer moves to the
+     * decoded message, which hands it back once it has been handled.
+     *
+     * @param channel - the readable channel
+     */
+    private void drain(Channel channel) {
+        byte[] buffer = BufferPool.acquire();
+        while (true) {
+            ByteBuffer receiveBuffer = ByteBuffer.wrap(buffer);
+            InetSocketAddress source;
+            try {
+                source = (InetSocketAddress) channel.receive(receiveBuffer);
+            } catch (IOException e) {
+                UI.printError("Failed to receive message in " + channel.getType() + " on port " + channel.getPort());
+                e.printStackTrace();
+                break;
+            }
+
+            if (source == null) {
+                break;
+            }
+
+            Message message;
+            try {
+                message = Message.fromPooledBuffer(buffer, receiveBuffer.position());
+            } catch (RuntimeException e) {
+                UI.printError("Ignoring malformed message in " + channel.getType() + ": " + e.getMessage());
+                continue;
+            }
+
+            try {
+                messageHandler.handleMessage(message, source.getAddress());
+            } catch (RuntimeException e) {
+                UI.printError("Failed to handle message in " + channel.getType());
+                e.printStackTrace();
+                message.release();
+            }
+            buffer = BufferPool.acquire();
+        }
+        BufferPool.release(buffer);
+    }
+
+    public void close() {
+        isActive = false;
+        try {
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package channels;
+
+import user_interface.UI;
+import utils.BufferPool;
+import utils.Utils;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongConsumer;
+
+public class ChannelSender implements Runnable {
+
+    private Channel channel;
+    private DatagramChannel sendChannel;
+    private InetSocketAddress group;
+
+    private ConcurrentLinkedQueue<OutboundPacket> outbound = new ConcurrentLinkedQueue<>();
+    private AtomicInteger queueDepth = new AtomicInteger(0);
+    private Semaphore capacity = new Semaphore(Utils.SEND_QUEUE_CAPACITY);
+    private AtomicBoolean isParked = new AtomicBoolean(false);
+    private Thread thread;
+
+    ChannelSender(Channel channel, DatagramChannel sendChannel, InetSocketAddress group) {
+        this.channel = channel;
+        this.sendChannel = sendChannel;
+        this.group = group;
+    }
+
+    void start(String name) {
+        thread = new Thread(this, name);
+        thread.start();
+    }
+
+    /**
+     * Reserves a place in the send queue for a packet, blocking the producer while the queue is full, so a producer
+     * faster than the channel is pushed back instead of growing the queue. Must be called before the packet is enqueued.
+     */
+    void reserve() {
+        capacity.acquireUninterruptibly();
+    }
+
+    /**
+     * Queues an encoded packet to be sent, in a place reserved by the caller. Never blocks: any thread may enqueue,
+     * only the sender thread sends. The sender takes ownership of the pooled packet buffer and releases it once the
+     * packet is sent.
+     *
+     * @param packet - the pooled packet buffer
+     * @param length - the packet length
+     * @param onSent - called by the sender thread with the time the packet was actually sent, or null
+     */
+    void enqueue(byte[] packet, int length, LongConsumer onSent) {
+        outbound.offer(new OutboundPacket(packet, length, onSent));
+        queueDepth.incrementAndGet();
+
+        if (isParked.compareAndSet(true, false)) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * @return the number of packets waiting to be sent
+     */
+    int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    /**
+     * Drains every queued packet on each wake up and parks until a new packet is queued.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            OutboundPacket packet;
+            while ((packet = outbound.poll()) != null) {
+                send(packet);
+            }
+
+            park();
+        }
+    }
+
+    private void park() {
+        isParked.set(true);
+        if (!outbound.isEmpty()) {
+            isParked.set(false);
+            return;
+        }
+
+        LockSupport.park(this);
+        isParked.set(false);
+    }
+
+    private void send(OutboundPacket packet) {
+        try {
+            Pacer pacer = channel.getPacer();
+            if (pacer != null) {
+                pacer.acquire(packet.length);
+            }
+            sendChannel.send(ByteBuffer.wrap(packet.buffer, 0, packet.length), group);
+        } catch (IOException e) {
+            UI.printError("Failed to send message in " + channel.getType() + " on port " + channel.getPort());
+            e.printStackTrace();
+        } finally {
+            BufferPool.release(packet.buffer);
+            queueDepth.decrementAndGet();
+            capacity.release();
+            if (packet.onSent != null) {
+                packet.onSent.accept(System.currentTimeMillis());
+            }
+        }
+    }
+
+    /**
+     * An encoded packet waiting to be sent.
+     */
+    private static class OutboundPacket {
+        private byte[] buffer;
+        private int length;
+        private LongConsumer onSent;
+
+        OutboundPacket(byte[] buffer, int length, LongConsumer onSent) {
+            this.buffer = buffer;
+            this.length = length;
+            this.onSent = onSent;
+        }
+    }
+}
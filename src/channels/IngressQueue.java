@@ -0,0 +1,233 @@
+package channels;
+
+import message.Message;
+import utils.Scheduler;
+import utils.Utils;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class IngressQueue {
+
+    /**
+     * The priority lanes, from the most to the least urgent.
+     */
+    public enum Lane {CONTROL, RESTORE, BULK}
+
+    private Scheduler scheduler;
+    private Executor executor;
+    private LinkedBlockingQueue<IngressTask> controlLane = new LinkedBlockingQueue<>(Utils.INGRESS_CONTROL_CAPACITY);
+    private LinkedBlockingQueue<IngressTask> restoreLane = new LinkedBlockingQueue<>(Utils.INGRESS_RESTORE_CAPACITY);
+    private LinkedBlockingQueue<IngressTask> bulkLane = new LinkedBlockingQueue<>(Utils.INGRESS_BULK_CAPACITY);
+
+    private AtomicBoolean isDraining = new AtomicBoolean(false);
+    private volatile boolean isHeld = false;
+    private AtomicInteger pendingDeferrals = new AtomicInteger(0);
+
+    private AtomicLong droppedMessages = new AtomicLong(0);
+    private AtomicLong deferredMessages = new AtomicLong(0);
+
+    /**
+     * Creates the ingress stage between the channels and a state shard. Messages wait in bounded lanes and are handled
+     * one at a time on the shard, always taking the most urgent lane first, so that control and restore messages never
+     * wait behind more than the bulk message being handled.
+     *
+     * @param scheduler - the scheduler, used to defer bulk messages
+     * @param executor - the shard running the handlers
+     */
+    IngressQueue(Scheduler scheduler, Executor executor) {
+        this.scheduler = scheduler;
+        this.executor = executor;
+    }
+
+    /**
+     * Queues a message handler in its lane. The message is released once its handler returns or if it is dropped.
+     * When the bulk lane is full, its messages are deferred for a random delay a few times, after which they are shed:
+     * the initiator retransmits the PUTCHUNK messages that do not get enough STORED replies.
+     * Messages that find the control or restore lanes full are dropped.
+     *
+     * @param message - the message being handled
+     * @param handler - the handler
+     * @param lane - the lane of the message
+     */
+    void offer(Message message, Runnable handler, Lane lane) {
+        offer(new IngressTask(message, handler, null, lane));
+    }
+
+    /**
+     * Queues a message handler in its lane, running onDrop instead of the handler if the message is dropped.
+     *
+     * @param message - the message being handled
+     * @param handler - the handler
+     * @param onDrop - what undoes the work done for the message before it was queued
+     * @param lane - the lane of the message
+     */
+    void offer(Message message, Runnable handler, Runnable onDrop, Lane lane) {
+        offer(new IngressTask(message, handler, onDrop, lane));
+    }
+
+    private void offer(IngressTask task) {
+        if (!getLane(task.lane).offer(task)) {
+            if (task.lane == Lane.BULK && defer(task)) {
+                return;
+            }
+            droppedMessages.incrementAndGet();
+            if (task.onDrop != null) {
+                task.onDrop.run();
+            }
+            task.message.release();
+            return;
+        }
+
+        if (isDraining.compareAndSet(false, true)) {
+            executor.execute(this::drain);
+        }
+    }
+
+    /**
+     * Drops a message without queueing it, like a shed bulk message.
+     *
+     * @param message - the message being dropped
+     */
+    void shed(Message message) {
+        droppedMessages.incrementAndGet();
+        message.release();
+    }
+
+    /**
+     * Holds the control and bulk lanes: their messages keep being queued, up to the lane capacities, but only the
+     * restore lane is handled until resume is called.
+     */
+    void hold() {
+        isHeld = true;
+    }
+
+    /**
+     * Resumes handling every lane.
+     */
+    void resume() {
+        isHeld = false;
+        if (hasWork() && isDraining.compareAndSet(false, true)) {
+            executor.execute(this::drain);
+        }
+    }
+
+    private boolean defer(IngressTask task) {
+        if (task.deferrals >= Utils.INGRESS_MAX_DEFERRALS) {
+            return false;
+        }
+        if (pendingDeferrals.incrementAndGet() > Utils.INGRESS_BULK_CAPACITY) {
+            pendingDeferrals.decrementAndGet();
+            return false;
+        }
+
+        task.deferrals++;
+        deferredMessages.incrementAndGet();
+        scheduler.schedule(() -> {
+            pendingDeferrals.decrementAndGet();
+            offer(task);
+        }, Utils.getRandom(1, Utils.INGRESS_DEFER_DELAY));
+        return true;
+    }
+
+    /**
+     * Handles queued messages until the lanes are empty. Before stopping, checks again for messages queued in the
+     * meantime, which could otherwise be left without a drain.
+     */
+    private void drain() {
+        while (true) {
+            IngressTask task = poll();
+            if (task == null) {
+                isDraining.set(false);
+                if (hasWork() && isDraining.compareAndSet(false, true)) {
+                    continue;
+                }
+                return;
+            }
+
+            try {
+                task.handler.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            } finally {
+                task.message.release();
+            }
+        }
+    }
+
+    private IngressTask poll() {
+        if (isHeld) {
+            return restoreLane.poll();
+        }
+        IngressTask task = controlLane.poll();
+        if (task != null) {
+            return task;
+        }
+        task = restoreLane.poll();
+        if (task != null) {
+            return task;
+        }
+        return bulkLane.poll();
+    }
+
+    private boolean hasWork() {
+        if (isHeld) {
+            return !restoreLane.isEmpty();
+        }
+        return !controlLane.isEmpty() || !restoreLane.isEmpty() || !bulkLane.isEmpty();
+    }
+
+    private LinkedBlockingQueue<IngressTask> getLane(Lane lane) {
+        switch (lane) {
+            case CONTROL:
+                return controlLane;
+            case RESTORE:
+                return restoreLane;
+            default:
+                return bulkLane;
+        }
+    }
+
+    /**
+     * @param lane - the lane
+     * @return the number of messages waiting in the lane
+     */
+    public int getDepth(Lane lane) {
+        return getLane(lane).size();
+    }
+
+    /**
+     * @return the number of messages dropped because their lane was full
+     */
+    public long getDroppedMessages() {
+        return droppedMessages.get();
+    }
+
+    /**
+     * @return the number of times a bulk message was deferred because its lane was full
+     */
+    public long getDeferredMessages() {
+        return deferredMessages.get();
+    }
+
+    /**
+     * A message waiting to be handled.
+     */
+    private static class IngressTask {
+        private Message message;
+        private Runnable handler;
+        private Runnable onDrop;
+        private Lane lane;
+        private int deferrals = 0;
+
+        IngressTask(Message message, Runnable handler, Runnable onDrop, Lane lane) {
+            this.message = message;
+            this.handler = handler;
+            this.onDrop = onDrop;
+            this.lane = lane;
+        }
+    }
+}
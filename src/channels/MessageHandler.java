@@ -1,36 +1,58 @@
 package channels;
 
 import peer.PeerState;
+import peer.StateShards;
 import protocols.BackupChunkInitiator;
+import storage.FileId;
 import storage.ChunkInfo;
 import message.Message;
 import storage.FileChunk;
+import storage.StorageManager;
 import peer.Peer;
+import utils.Scheduler;
 import utils.Utils;
 import user_interface.UI;
 
 import java.net.InetAddress;
-import java.util.ArrayList;
-import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.*;
 
-import static utils.Utils.MAX_THREADS;
-
 public class MessageHandler {
 
     private PeerState peerState;
     private Peer peer;
-    private ScheduledExecutorService scheduledExecutorService = Executors.newScheduledThreadPool(MAX_THREADS);
+    private Scheduler scheduler;
+    private StateShards shards;
+    private IngressQueue[] ingressQueues;
 
     public MessageHandler(Peer peer) {
         this.peer = peer;
         this.peerState = peer.getPeerState();
+        this.scheduler = peer.getScheduler();
+        this.shards = peerState.getShards();
+
+        this.ingressQueues = new IngressQueue[shards.getShardCount()];
+        for (int i = 0; i < ingressQueues.length; i++) {
+            ingressQueues[i] = new IngressQueue(scheduler, shards.getShard(i));
+            ingressQueues[i].hold();
+        }
+        peer.getStateLoaded().thenRun(() -> {
+            for (IngressQueue ingressQueue : ingressQueues) {
+                ingressQueue.resume();
+            }
+        });
     }
 
     /**
-      * Handles a message and sends it to the thread pool.
+      * Handles a message and queues it in its ingress lane, on the state shard of the file it refers to. Each shard
+      * handles control messages first, then restore messages and finally backup messages.
       * Ignores messages sent my itself unless they are REMOVED messages.
+      * While the peer state is being loaded, only the restore lanes are handled, GETCHUNK messages being answered from the
+      * chunk catalogue of the snapshot; the other messages wait in their bounded lanes until the state is loaded, except
+      * PUTCHUNK messages, which are shed, since their initiator retransmits them.
+      * The message is released once its handler returns, so a pooled receive buffer goes back to the pool.
+      * Ownership of the message only passes to the ingress stage as the last step, either queued or dropped, so if this
+      * throws the caller still owns the message and must release it.
       *
       * @param message message to be handled
       * @param address address used in GETCHUNK message (TCP address). Unless the peer is enhanced, this field is always
@@ -38,80 +60,158 @@ public class MessageHandler {
       */
     void handleMessage(Message message, InetAddress address) {
 
-        if(message.getMessageType()!= Message.MessageType.REMOVED && message.getSenderId().equals(peer.getServerId())) {
+        if(message.getMessageType()!= Message.MessageType.REMOVED && message.getSenderId() == peer.getServerId()) {
+            message.release();
+            return;
+        }
+
+        if(!peer.getStateLoaded().isDone() && message.getMessageType() == Message.MessageType.PUTCHUNK) {
+            ingressQueues[shards.getShardIndex(message.getFileId())].shed(message);
             return;
         }
 
         int randomWait = 0;
         switch(message.getMessageType()) {
             case PUTCHUNK:
+                if(!reserveSpace(message)) {
+                    message.release();
+                    break;
+                }
+
                 if(peer.isEnhanced()) {
                     randomWait = Utils.getRandom(0, Utils.MAX_DELAY_BACKUP_ENH);
                     peerState.listenForSTORED_ENH(message);
                 }
 
-                scheduledExecutorService.schedule(() -> handlePUTCHUNK(message), randomWait, TimeUnit.MILLISECONDS);
+                FileChunk fileChunk = message.getFileChunk();
+                dispatch(message, () -> handlePUTCHUNK(message), () -> peerState.getStorageManager().releaseSpace(fileChunk),
+                        IngressQueue.Lane.BULK, randomWait);
                 break;
             case STORED:
-                scheduledExecutorService.submit(() -> handleSTORED(message));
+                dispatch(message, () -> handleSTORED(message), IngressQueue.Lane.CONTROL, 0);
                 break;
             case GETCHUNK:
                 peerState.listenForCHUNK(message);
                 randomWait = Utils.getRandom(0, Utils.MAX_DELAY_CHUNK);
-                scheduledExecutorService.schedule(() -> handleGETCHUNK(message, address), randomWait, TimeUnit.MILLISECONDS);
+                dispatch(message, () -> handleGETCHUNK(message, address), IngressQueue.Lane.RESTORE, randomWait);
                 break;
             case CHUNK:
-                scheduledExecutorService.submit(() -> handleCHUNK(message));
+                dispatch(message, () -> handleCHUNK(message), IngressQueue.Lane.RESTORE, 0);
                 break;
             case DELETE:
-                scheduledExecutorService.submit(() -> handleDELETE(message));
+                dispatch(message, () -> handleDELETE(message), IngressQueue.Lane.CONTROL, 0);
                 break;
             case REMOVED:
-                scheduledExecutorService.submit(() -> handleREMOVED(message));
+                dispatch(message, () -> handleREMOVED(message), IngressQueue.Lane.CONTROL, 0);
                 break;
             case CONTROL:
-                scheduledExecutorService.submit(() -> handleCONTROL(message));
+                dispatch(message, () -> handleCONTROL(message), IngressQueue.Lane.CONTROL, 0);
                 break;
             case ACK_DELETE:
-                scheduledExecutorService.submit(() -> handleACK_DELETE(message));
+                dispatch(message, () -> handleACK_DELETE(message), IngressQueue.Lane.CONTROL, 0);
                 break;
             default:
                 UI.printError("Message type "+message.getMessageType()+" is not a valid type");
+                message.release();
         }
 
     }
 
+    /**
+     * Queues a message handler in the ingress stage of the shard of its file, which releases the message when the
+     * handler returns. All the handlers of a file thus run on the same thread, one at a time. Delayed handlers wait on
+     * the timer wheel, not on a thread, and only then enter their lane.
+     *
+     * @param message - the message being handled
+     * @param handler - the handler
+     * @param lane - the ingress lane of the message
+     * @param delay - the delay before queueing the handler, in milliseconds
+     */
+    private void dispatch(Message message, Runnable handler, IngressQueue.Lane lane, int delay) {
+        dispatch(message, handler, null, lane, delay);
+    }
+
+    /**
+     * Queues a message handler like dispatch(message, handler, lane, delay), running onDrop if the message is dropped.
+     *
+     * @param message - the message being handled
+     * @param handler - the handler
+     * @param onDrop - what undoes the work done for the message before it was queued
+     * @param lane - the ingress lane of the message
+     * @param delay - the delay before queueing the handler, in milliseconds
+     */
+    private void dispatch(Message message, Runnable handler, Runnable onDrop, IngressQueue.Lane lane, int delay) {
+        IngressQueue ingressQueue = ingressQueues[shards.getShardIndex(message.getFileId())];
+        if (delay > 0) {
+            scheduler.schedule(() -> ingressQueue.offer(message, handler, onDrop, lane), delay);
+        } else {
+            ingressQueue.offer(message, handler, onDrop, lane);
+        }
+    }
+
+    /**
+     * Reserves the space of the chunk of a PUTCHUNK message as soon as it is received, so that only chunks that can be
+     * stored are queued. The reservation is committed when the chunk is saved and released if it is not.
+     * Runs on the selector thread, so it only checks the space counters of the storage manager: the shard-owned state
+     * is checked by the PUTCHUNK handler, which gives back the space of chunks that are already stored and of chunks of
+     * files backed up by this peer.
+     *
+     * @param message - the PUTCHUNK message
+     * @return true if the chunk can be stored, false otherwise
+     */
+    private boolean reserveSpace(Message message) {
+        FileId fileId = message.getFileId();
+        StorageManager storageManager = peerState.getStorageManager();
+        if(storageManager.reserveSpace(message.getFileChunk(), message.getBodyLength())) {
+            return true;
+        }
+
+        UI.printError("Chunk " + message.getChunkNo() + " of file " + fileId + " is larger than the available space (" + storageManager.getAvailableSpace() + ")");
+        return false;
+    }
+
+    /**
+     * @return the ingress stages of the shards
+     */
+    public IngressQueue[] getIngressQueues() {
+        return ingressQueues;
+    }
+
     /**
      * Handles a PUTCHUNK message.
      * Starts by checking if this peer was the one asking for this file to be backed up, ignoring if positive.
      * If the peer is enhanced, and the replication degree for the chunk No received was achieved in the meantime, it
-     * aborts the request.
+     * aborts the request, releasing the space reserved for the chunk.
      * Then, if that chunk size is larger than the available free space, the request is aborted.
-     * Finally, the chunk is saved in the local storage and the peer sends the STORED message. If the chunk was already
-     * saved, it still sends the STORED message.
+     * Finally, the chunk is queued to be saved in the local storage, committing its reserved space, and the peer sends
+     * the STORED message once the chunk and its state log record are durable. If the chunk was already saved, it still
+     * sends the STORED message.
      *
      * @param message - the received STORED message
      */
     private void handlePUTCHUNK(Message message) {
         UI.printBoot("------------- Received PUTCHUNK Message: "+message.getChunkNo()+" -----------");
 
-        String fileId = message.getFileId();
+        FileId fileId = message.getFileId();
         int chunkNo = message.getChunkNo();
 
-        ConcurrentHashMap<String, Set<Integer>> peersWithFile = peerState.getPeersBackingUpFile();
+        StorageManager storageManager = peerState.getStorageManager();
+        ConcurrentHashMap<FileId, Set<Integer>> peersWithFile = peerState.getPeersBackingUpFile();
         if(peersWithFile.containsKey(fileId)){
             UI.printWarning("Since I'm the one backing up this file, this request wil be ignored");
+            storageManager.releaseSpace(message.getFileChunk());
             UI.printBoot("------------------------------------------------------");
             return;
         }
 
         if(peer.isEnhanced()) {
-            FileChunk fileChunk = new FileChunk(fileId, chunkNo);
+            FileChunk fileChunk = message.getFileChunk();
             ConcurrentHashMap<FileChunk, ChunkInfo> storedChunks_ENH = peerState.getStoredChunks_ENH();
 
             if(storedChunks_ENH.containsKey(fileChunk)) {
                 if(storedChunks_ENH.get(fileChunk).achievedDesiredRepDeg()) {
                     UI.printWarning("Replication degree is already being respected for chunk " + message.getChunkNo() + ". Ignoring further requests");
+                    storageManager.releaseSpace(fileChunk);
                     UI.printBoot("------------------------------------------------------");
                     return;
                 }
@@ -119,25 +219,74 @@ public class MessageHandler {
         }
 
         peerState.startStoringChunks(message);
-        ConcurrentHashMap<String, ArrayList<Integer>> storedChunksByFileId = peerState.getStoredChunksByFileId();
 
-        if(storedChunksByFileId.get(fileId).contains(message.getChunkNo())) {
+        if(peerState.isChunkStored(message.getFileChunk())) {
             UI.printWarning("Chunk is already stored, sending STORED message");
+            storageManager.releaseSpace(message.getFileChunk());
+            sendSTORED(fileId, chunkNo);
+            UI.printBoot("------------------------------------------------------");
+            return;
         }
-        else {
-            if (!peerState.getStorageManager().saveChunk(message)) {
-                UI.printError("Chunk " + chunkNo + " of file " + fileId + " is larger than the available space (" + peerState.getStorageManager().getAvailableSpace() + ")");
-                UI.printBoot("------------------------------------------------------");
+
+        message.retain();
+        storageManager.saveChunk(message).thenAccept(isSaved -> shards.execute(fileId, () -> {
+            try {
+                onChunkSaved(message, isSaved);
+            } finally {
+                message.release();
+            }
+        }));
+        UI.printBoot("------------------------------------------------------");
+    }
+
+    /**
+     * Finishes handling a PUTCHUNK message once its chunk was saved, on the shard of its file. The chunk is only
+     * marked as stored, and the STORED message sent, if it is durable and its file was not deleted meanwhile. A copy of
+     * a chunk already stored gives back the space it reserved.
+     *
+     * @param message - the PUTCHUNK message
+     * @param isSaved - true if the chunk was saved, false otherwise
+     */
+    private void onChunkSaved(Message message, boolean isSaved) {
+        FileId fileId = message.getFileId();
+        int chunkNo = message.getChunkNo();
+
+        StorageManager storageManager = peerState.getStorageManager();
+        if(peerState.isChunkStored(message.getFileChunk())) {
+            storageManager.releaseSpace(message.getFileChunk());
+        } else {
+            if(!isSaved || !storageManager.confirmChunk(message.getFileChunk())) {
+                UI.printError("Chunk " + chunkNo + " of file " + fileId + " couldn't be saved (" + storageManager.getAvailableSpace() + " bytes available)");
                 return;
             }
             peerState.addStoredChunk(message);
         }
 
+        sendSTORED(fileId, chunkNo);
+    }
+
+    /**
+     * Sends the STORED message of a chunk once the state log flush that covers its stored chunk record synced it, so a
+     * peer never promises a chunk it would forget after a crash. The message is sent from the workers, which may wait
+     * for a place in the send queue.
+     *
+     * @param fileId - the file id
+     * @param chunkNo - the chunk number
+     */
+    private void sendSTORED(FileId fileId, int chunkNo) {
+        peerState.awaitLogFlush().whenComplete((ignored, error) -> {
+            if (error != null) {
+                UI.printError("Chunk " + chunkNo + " of file " + fileId + " couldn't be logged, not sending STORED");
+                return;
+            }
+            scheduler.submit(() -> sendLoggedSTORED(fileId, chunkNo));
+        });
+    }
+
+    private void sendLoggedSTORED(FileId fileId, int chunkNo) {
         Message storedMessage = new Message(peer.getVersion(), peer.getServerId(), fileId, null, Message.MessageType.STORED, chunkNo);
         peer.getMCChannel().sendWithRandomDelay(Utils.MAX_DELAY_STORED, storedMessage);
-
-        UI.printOK("Sending STORED message: " + storedMessage.getChunkNo());
-        UI.printBoot("------------------------------------------------------");
+        UI.printOK("Sending STORED message: " + chunkNo);
     }
 
     /**
@@ -149,10 +298,10 @@ public class MessageHandler {
      */
     private void handleSTORED(Message message) {
         UI.printBoot("-------------- Received STORED Message: "+ message.getChunkNo() +" ------------");
-        FileChunk fileChunk = new FileChunk(message.getFileId(), message.getChunkNo());
+        FileChunk fileChunk = message.getFileChunk();
         peerState.updateBackedUpChunks(fileChunk, message);
 
-        ConcurrentHashMap<String, Set<Integer>> peersWithFile = peerState.getPeersBackingUpFile();
+        ConcurrentHashMap<FileId, Set<Integer>> peersWithFile = peerState.getPeersBackingUpFile();
         if(peersWithFile.containsKey(message.getFileId())){
             UI.printOK("Finished updating");
             UI.printBoot("------------------------------------------------------");
@@ -169,7 +318,8 @@ public class MessageHandler {
      * If a CHUNK message for this chunk is received while handling GETCHUNK, the operation is aborted.
      * is aborted.
      * If the peer does not have any CHUNK for this file or this CHUNK No, the operation is aborted.
-     * Finally it loads the chunk stored in its local storage and sends the CHUNK to the channel.
+     * Finally it loads the chunk stored in its local storage, on the storage read threads, and sends the CHUNK to the
+     * channel back on the shard of the file, unless another peer sent it meanwhile.
      *
      * @param message - the received GETCHUNK message
      * @param address - address used for TCP connection in enhanced peers
@@ -177,9 +327,9 @@ public class MessageHandler {
     private void handleGETCHUNK(Message message, InetAddress address) {
         UI.printBoot("------------ Received GETCHUNK Message: "+message.getChunkNo()+" ------------");
 
-        String fileId = message.getFileId();
+        FileId fileId = message.getFileId();
         int chunkNo = message.getChunkNo();
-        FileChunk fileChunk = new FileChunk(fileId, chunkNo);
+        FileChunk fileChunk = message.getFileChunk();
 
         ConcurrentHashMap<FileChunk, Boolean> isBeingRestoredChunkMap = peerState.getIsBeingRestoredChunkMap();
         if(isBeingRestoredChunkMap.containsKey(fileChunk)) {
@@ -191,18 +341,44 @@ public class MessageHandler {
             }
         }
 
-        ConcurrentHashMap<String, ArrayList<Integer>> storedChunksByFileId = peerState.getStoredChunksByFileId();
-        if(!storedChunksByFileId.containsKey(fileId) || !storedChunksByFileId.get(fileId).contains(chunkNo)) {
+        if(!peerState.isChunkStored(fileChunk)) {
             UI.printBoot("------------------------------------------------------");
             return;
         }
 
-        Message chunk = peerState.getStorageManager().loadChunk(fileId, chunkNo);
-        UI.printOK("Sending CHUNK Message: " + message.getChunkNo());
-        peer.sendMessage(chunk,address,message.getSenderId());
+        int senderId = message.getSenderId();
+        peerState.getStorageManager().loadChunkAsync(fileChunk)
+                .thenAccept(chunk -> shards.execute(fileId, () -> sendCHUNK(chunk, address, senderId)));
         UI.printBoot("------------------------------------------------------");
     }
 
+    /**
+     * Sends a loaded chunk in reply to a GETCHUNK message, unless a CHUNK message for it was received while it was
+     * being loaded. The chunk is sent, and then released, by the workers, since the send may wait for the channel.
+     *
+     * @param chunk - the CHUNK message
+     * @param address - address used for TCP connection in enhanced peers
+     * @param senderId - the id of the peer that sent the GETCHUNK message
+     */
+    private void sendCHUNK(Message chunk, InetAddress address, int senderId) {
+        FileChunk fileChunk = chunk.getFileChunk();
+        if(Boolean.TRUE.equals(peerState.getIsBeingRestoredChunkMap().get(fileChunk))) {
+            peerState.removeChunk(fileChunk);
+            UI.printWarning("Chunk " + chunk.getChunkNo() + " is already being restored, ignoring request");
+            chunk.release();
+            return;
+        }
+
+        UI.printOK("Sending CHUNK Message: " + chunk.getChunkNo());
+        scheduler.submit(() -> {
+            try {
+                peer.sendMessage(chunk, address, senderId);
+            } finally {
+                chunk.release();
+            }
+        });
+    }
+
     /**
      * Handles a CHUNK message.
      * Starts by marking the chunk as being restored.
@@ -210,15 +386,15 @@ public class MessageHandler {
      * If the message was sent by an enhanced peer and it only contains the header, the request must be ignored. (used
      * to avoid flooding the host)
      * Finally it adds the chunk to the restored chunks. If the last chunk required was received, the peer has successfully
-     * restored the file.
+     * restored the file, which is written on the storage I/O thread.
      *
      * @param message - the received CHUNK message
      */
     private void handleCHUNK(Message message) {
         UI.printBoot("-------------- Received CHUNK Message: "+ message.getChunkNo() +" -------------");
 
-        String fileId = message.getFileId();
-        FileChunk fileChunk = new FileChunk(fileId, message.getChunkNo());
+        FileId fileId = message.getFileId();
+        FileChunk fileChunk = message.getFileChunk();
 
         ConcurrentHashMap<FileChunk, Boolean> isBeingRestoredChunkMap = peerState.getIsBeingRestoredChunkMap();
         if(isBeingRestoredChunkMap.containsKey(fileChunk)) {
@@ -226,7 +402,7 @@ public class MessageHandler {
             UI.printOK("Marked chunk No " + message.getChunkNo() + " as being restored");
         }
 
-        ConcurrentHashMap<String, ConcurrentSkipListSet<Message>> chunksByRestoredFile = peerState.getRestoredChunks();
+        ConcurrentHashMap<FileId, ConcurrentSkipListSet<Message>> chunksByRestoredFile = peerState.getRestoredChunks();
         if(!chunksByRestoredFile.containsKey(fileId)) {
             UI.print("File is not being restored by this peer");
             UI.printBoot("------------------------------------------------------");
@@ -243,7 +419,6 @@ public class MessageHandler {
 
         if(peerState.hasRestoredAllChunks(fileId)) {
             peerState.saveFileToRestoredFolder(fileId);
-            peerState.stopRestoringFile(fileId);
             peer.closeTcpReceiver();
         }
         UI.printBoot("------------------------------------------------------");
@@ -252,31 +427,25 @@ public class MessageHandler {
     /**
      * Handles a DELETE message.
      * Starts by checking if the peer is backing up the file, ignoring the request if negative.
-     * Then, informs the peer to delete every chunk related to that file.
+     * Then, informs the peer to delete every chunk related to that file, at once.
      *
      * @param message - the received DELETE message
      */
     private void handleDELETE(Message message) {
         UI.printBoot("-------------- Received DELETE Message ---------------");
 
-        String fileId = message.getFileId();
+        FileId fileId = message.getFileId();
 
-        ConcurrentHashMap<String, ArrayList<Integer>> storedChunksByFileId = peerState.getStoredChunksByFileId();
-        if(!storedChunksByFileId.containsKey(fileId)) {
+        if(!peerState.deleteFile(fileId)) {
             UI.printBoot("------------------------------------------------------");
             return;
         }
 
-        ArrayList<Integer> storedChunks = storedChunksByFileId.get(fileId);
-        while(!storedChunks.isEmpty()) {
-            peerState.deleteChunk(fileId, storedChunks.get(0), false);
-        }
-
         UI.printOK("File deleted successfully");
 
         if(!peer.isEnhanced()){
             Message messageACK_DELETE = new Message(peer.getVersion(),peer.getServerId(),fileId, null, Message.MessageType.ACK_DELETE);
-            peer.getMCChannel().sendMessage(messageACK_DELETE);
+            scheduler.submit(() -> peer.getMCChannel().sendMessage(messageACK_DELETE));
             UI.printOK("Sending ACK_DELETE message");
         }
 
@@ -284,71 +453,90 @@ public class MessageHandler {
     }
 
     /**
-     * Handles a REMOVED message.
-     * If the deletion of the chunk has lead to an unsatisfiable replication degree, a new backup protocol for that
-     * chunk is initiated.
+     * Handles a REMOVED message, which refers to one chunk or, if sent by an enhanced peer, to several chunks of the
+     * same file.
      *
      * @param message - the received REMOVED message
      */
     private void handleREMOVED(Message message) {
-        UI.printBoot("------------- Received REMOVE Message: "+message.getChunkNo()+" ------------");
+        int[] chunkNos = message.getChunkNos();
+        for (int i = 0; i < chunkNos.length; i++) {
+            FileChunk fileChunk = i == 0 ? message.getFileChunk() : new FileChunk(message.getFileId(), chunkNos[i]);
+            handleREMOVED(message, fileChunk, i);
+        }
+    }
+
+    /**
+     * Handles the removal of a chunk.
+     * If the deletion of the chunk has lead to an unsatisfiable replication degree, a new backup protocol for that
+     * chunk is initiated, from the chunk stored by this peer or, if this peer reclaimed it, from the chunk whose
+     * deletion was held until now. The backups of the chunks of an aggregated REMOVED start REMOVED_CHUNK_SPACING
+     * apart, on top of the random delay, so that they do not flood the MDB channel.
+     *
+     * @param message - the received REMOVED message
+     * @param fileChunk - the removed chunk
+     * @param index - the position of the chunk in the message
+     */
+    private void handleREMOVED(Message message, FileChunk fileChunk, int index) {
+        int chunkNo = fileChunk.getChunkNo();
+        UI.printBoot("------------- Received REMOVE Message: "+chunkNo+" ------------");
 
-        FileChunk fileChunk = new FileChunk(message.getFileId(), message.getChunkNo());
         ConcurrentHashMap<FileChunk, ChunkInfo> storedChunks = peerState.getStoredChunks();
         ConcurrentHashMap<FileChunk, ChunkInfo> reclaimedChunks = peerState.getChunksReclaimed();
         ConcurrentHashMap<FileChunk, ChunkInfo> backedUpChunks = peerState.getBackedUpChunks();
+        int delay = Utils.getRandom(0, Utils.MAX_DELAY_REMOVED) + index * Utils.REMOVED_CHUNK_SPACING;
 
         if(peer.isEnhanced()){
             ConcurrentHashMap<FileChunk, ChunkInfo> storedChunks_ENH = peerState.getStoredChunks_ENH();
             if(storedChunks_ENH.containsKey(fileChunk)){
-//                ChunkInfo chunkInfo = storedChunks_ENH.get(fileChunk);
-//                if(chunkInfo.isBackedUpByPeer(message.getSenderId())){
-//                    chunkInfo.decreaseCurrentRepDeg();
-//                    chunkInfo.removePeer(message.getSenderId());
-//                }
                 storedChunks_ENH.remove(fileChunk);
             }
         }
         if(reclaimedChunks.containsKey(fileChunk)){
             ChunkInfo chunkInfo = reclaimedChunks.get(fileChunk);
-
-            UI.print("Replication degree of Chunk " + message.getChunkNo() + " is no longer being respected");
-            Message messagePUTCHUNK = new Message(peer.getVersion(), peer.getServerId(), message.getFileId(), chunkInfo.getBody(),
-                    Message.MessageType.PUTCHUNK, message.getChunkNo(), chunkInfo.getDesiredReplicationDeg());
-
-            scheduledExecutorService.schedule( new BackupChunkInitiator(peerState, messagePUTCHUNK, peer.getMDBChannel()),
-                    Utils.getRandom(0, Utils.MAX_DELAY_REMOVED), TimeUnit.MILLISECONDS);
-
             peerState.removeReclaimedChunk(fileChunk);
+
+            UI.print("Replication degree of Chunk " + chunkNo + " is no longer being respected");
+            StorageManager storageManager = peerState.getStorageManager();
+            backUpChunkAgain(fileChunk, chunkInfo.getDesiredReplicationDeg(), delay)
+                    .whenComplete((ignored, error) -> storageManager.releaseChunkDeletion(fileChunk));
         } else if(storedChunks.containsKey(fileChunk)) {
-            ChunkInfo chunkInfo = storedChunks.get(fileChunk);
-            chunkInfo.decreaseCurrentRepDeg();
-            chunkInfo.removePeer(message.getSenderId());
+            ChunkInfo chunkInfo = peerState.removeStoredChunkPeer(fileChunk, message.getSenderId());
 
             if(!chunkInfo.achievedDesiredRepDeg()) {
-                UI.print("Replication degree of Chunk " + message.getChunkNo() + " is no longer being respected");
-                Message messagePUTCHUNK = peerState.getStorageManager().loadChunk(message.getFileId(), message.getChunkNo());
-                messagePUTCHUNK.setMessageType(Message.MessageType.PUTCHUNK);
-                messagePUTCHUNK.setReplicationDeg(chunkInfo.getDesiredReplicationDeg());
-
-                scheduledExecutorService.schedule( new BackupChunkInitiator(peerState, messagePUTCHUNK, peer.getMDBChannel()),
-                        Utils.getRandom(0, Utils.MAX_DELAY_REMOVED), TimeUnit.MILLISECONDS);
+                UI.print("Replication degree of Chunk " + chunkNo + " is no longer being respected");
+                backUpChunkAgain(fileChunk, chunkInfo.getDesiredReplicationDeg(), delay);
             }
         } else if(backedUpChunks.containsKey(fileChunk)){
-            ChunkInfo chunkInfo = backedUpChunks.get(fileChunk);
-            chunkInfo.decreaseCurrentRepDeg();
-            chunkInfo.removePeer(message.getSenderId());
-
+            peerState.removeBackedUpChunkPeer(fileChunk, message.getSenderId());
         }
         UI.printBoot("------------------------------------------------------");
     }
 
     /**
-     * Handles an ACK_DELETE message.
+     * Loads a chunk stored locally on the storage read threads and starts a new backup protocol for it after a delay.
+     *
+     * @param fileChunk - the chunk
+     * @param replicationDeg - the desired replication degree
+     * @param delay - the delay before the backup, in milliseconds
+     * @return a future completed once the chunk is loaded
+     */
+    private CompletableFuture<Void> backUpChunkAgain(FileChunk fileChunk, int replicationDeg, int delay) {
+        return peerState.getStorageManager().loadChunkAsync(fileChunk).thenAccept(messagePUTCHUNK -> {
+            messagePUTCHUNK.setMessageType(Message.MessageType.PUTCHUNK);
+            messagePUTCHUNK.setReplicationDeg(replicationDeg);
+
+            scheduler.schedule(() -> shards.execute(fileChunk.getFileId(), new BackupChunkInitiator(peerState, messagePUTCHUNK, peer.getMDBChannel(), scheduler)),
+                    delay);
+        });
+    }
+
+    /**
+     * Handles a CONTROL message.
      * Starts by checking if the peer is enhanced, aborting if otherwise.
      * Then, starts iterating through the peersBackingUpFile map. In each cycle it checks if the file was deleted.
-     * If positive, checks if the sends id belongs to one of the peers that haven't send an ACK_DELETE when the file was
-     * deleted, sending a DELETE message to the channel if it checks out.
+     * If positive, checks on the shard of the file if the sender id belongs to one of the peers that haven't send an
+     * ACK_DELETE when the file was deleted, sending a DELETE message to the channel if it checks out.
      * @param message - the received CONTROL message
      */
     private void handleCONTROL(Message message){
@@ -359,18 +547,20 @@ public class MessageHandler {
             return;
         }
 
-        Set<String> deletedFiles = peerState.getDeletedFiles();
-        ConcurrentHashMap<String, Set<Integer>> peersBackingUpFile = peerState.getPeersBackingUpFile();
+        Set<FileId> deletedFiles = peerState.getDeletedFiles();
+        ConcurrentHashMap<FileId, Set<Integer>> peersBackingUpFile = peerState.getPeersBackingUpFile();
 
-        for (Map.Entry<String, Set<Integer>> entry : peersBackingUpFile.entrySet()) {
-            String fileId = entry.getKey();
+        int senderId = message.getSenderId();
+        for (FileId fileId : peersBackingUpFile.keySet()) {
             if(deletedFiles.contains(fileId)){
-                Set<Integer> peers = entry.getValue();
-                if (peers.contains(message.getSenderId())) {
-                    Message messageDELETE = new Message(peer.getVersion(), peer.getServerId(), fileId, null, Message.MessageType.DELETE);
-                    peer.getMCChannel().sendMessage(messageDELETE);
-                    UI.printOK("Sending DELETE message");
-                }
+                shards.execute(fileId, () -> {
+                    Set<Integer> peers = peersBackingUpFile.get(fileId);
+                    if (peers != null && peers.contains(senderId)) {
+                        Message messageDELETE = new Message(peer.getVersion(), peer.getServerId(), fileId, null, Message.MessageType.DELETE);
+                        scheduler.submit(() -> peer.getMCChannel().sendMessage(messageDELETE));
+                        UI.printOK("Sending DELETE message");
+                    }
+                });
             }
         }
         UI.printBoot("-------------------------------------------------------");
@@ -392,14 +582,14 @@ public class MessageHandler {
             return;
         }
 
-        String fileId = message.getFileId();
-        Set<String> deletedFiles = peerState.getDeletedFiles();
+        FileId fileId = message.getFileId();
+        Set<FileId> deletedFiles = peerState.getDeletedFiles();
         if(!deletedFiles.contains(fileId)){
             UI.printBoot("-------------------------------------------------------");
             return;
         }
 
-        ConcurrentHashMap<String, Set<Integer>> peersBackingUpFile = peerState.getPeersBackingUpFile();
+        ConcurrentHashMap<FileId, Set<Integer>> peersBackingUpFile = peerState.getPeersBackingUpFile();
         if(peersBackingUpFile.containsKey(fileId)){
             peerState.removePeerBackingUpFile(fileId, message.getSenderId());
         }
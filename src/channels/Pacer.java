@@ -0,0 +1,88 @@
+package channels;
+
+import utils.Utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+public class Pacer {
+
+    private double rate;
+    private double tokens;
+    private double burst;
+    private long lastRefill;
+    private long lastDecrease;
+
+    /**
+     * Creates a token bucket that paces the bytes sent on a channel.
+     *
+     * @param rate - the initial send rate, in bytes per second
+     */
+    public Pacer(double rate) {
+        this.rate = clamp(rate);
+        this.burst = Utils.PACING_BURST;
+        this.tokens = burst;
+        this.lastRefill = System.nanoTime();
+        this.lastDecrease = 0;
+    }
+
+    /**
+     * Blocks until the bucket holds enough tokens to send a packet.
+     *
+     * @param bytes - the packet length
+     */
+    public void acquire(int bytes) {
+        long waitTime = reserve(bytes);
+        if (waitTime > 0) {
+            LockSupport.parkNanos(waitTime);
+        }
+    }
+
+    /**
+     * Takes the tokens needed to send a packet. The bucket may go into debt, in which case the caller must wait for it
+     * to be paid off before sending.
+     *
+     * @param bytes - the packet length
+     * @return the time to wait before sending, in nanoseconds
+     */
+    public synchronized long reserve(int bytes) {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - lastRefill) * rate / TimeUnit.SECONDS.toNanos(1));
+        lastRefill = now;
+
+        tokens -= bytes;
+        if (tokens >= 0) {
+            return 0;
+        }
+        return (long) (-tokens * TimeUnit.SECONDS.toNanos(1) / rate);
+    }
+
+    /**
+     * Additive increase: a chunk reached its replication degree without being retransmitted.
+     */
+    public synchronized void onDelivered() {
+        rate = clamp(rate + Utils.PACING_INCREASE);
+    }
+
+    /**
+     * Multiplicative decrease: a chunk had to be retransmitted. The rate is halved at most once per
+     * PACING_DECREASE_INTERVAL, so that a burst of losses caused by the same congestion counts once.
+     */
+    public synchronized void onLost() {
+        long now = System.currentTimeMillis();
+        if (now - lastDecrease < Utils.PACING_DECREASE_INTERVAL) {
+            return;
+        }
+
+        lastDecrease = now;
+        rate = clamp(rate / 2);
+    }
+
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    private static double clamp(double rate) {
+        return Math.max(Utils.PACING_MIN_RATE, Math.min(Utils.PACING_MAX_RATE, rate));
+    }
+}
@@ -0,0 +1,71 @@
+package channels;
+
+import utils.Utils;
+
+public class RttEstimator {
+
+    private static final double ALPHA = 0.125;
+    private static final double BETA = 0.25;
+    private static final int MAX_BACKOFF = 16;
+
+    private double smoothedRtt = -1;
+    private double rttVariance = 0;
+    private long timeout = Utils.INITIAL_RTO;
+    private int backoff = 0;
+
+    /**
+     * Adds a round-trip sample, measured from the first PUTCHUNK of a chunk until it reached its desired replication
+     * degree. Only chunks that were sent once should be sampled, since the STOREDs of a retransmitted chunk cannot be
+     * matched to a single send (Karn's algorithm).
+     * The timeout is the smoothed round-trip time plus four times its variance, as the TCP retransmission timeout. A
+     * valid sample ends the backoff.
+     *
+     * @param rtt - the round-trip time, in milliseconds
+     */
+    public synchronized void addSample(long rtt) {
+        if (smoothedRtt < 0) {
+            smoothedRtt = rtt;
+            rttVariance = rtt / 2.0;
+        } else {
+            rttVariance = (1 - BETA) * rttVariance + BETA * Math.abs(smoothedRtt - rtt);
+            smoothedRtt = (1 - ALPHA) * smoothedRtt + ALPHA * rtt;
+        }
+
+        timeout = clamp((long) Math.ceil(smoothedRtt + 4 * rttVariance));
+        backoff = 0;
+    }
+
+    /**
+     * Computes the retransmission timeout, doubled for every backoff since the last valid sample. Since retransmitted
+     * chunks give no samples, the backed off timeout is kept for every chunk sent until a chunk is replicated on its
+     * first try (Karn's algorithm, RFC 6298 section 5).
+     *
+     * @return the timeout, in milliseconds
+     */
+    public synchronized long getTimeout() {
+        return clamp(timeout << backoff);
+    }
+
+    /**
+     * @return the current backoff, to be kept with the timeout armed
+     */
+    public synchronized int getBackoff() {
+        return backoff;
+    }
+
+    /**
+     * Backs off the timeout after a retransmission timeout expired. Only a timeout armed with the current backoff
+     * doubles it, so a whole window of chunks expiring together backs off once.
+     *
+     * @param armedBackoff - the backoff when the expired timeout was armed
+     */
+    public synchronized void onTimeout(int armedBackoff) {
+        if (armedBackoff == backoff && backoff < MAX_BACKOFF) {
+            backoff++;
+        }
+    }
+
+    private static long clamp(long timeout) {
+        return Math.max(Utils.MIN_RTO, Math.min(Utils.MAX_RTO, timeout));
+    }
+}
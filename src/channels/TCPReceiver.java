@@ -6,20 +6,19 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import user_interface.UI;
-import utils.Utils;
+import utils.Scheduler;
 
 public class TCPReceiver implements Runnable {
 
     private MessageHandler messageHandler;
     private ServerSocket serverSocket;
-    private ExecutorService executorService = Executors.newFixedThreadPool(Utils.MAX_THREADS);
+    private Scheduler scheduler;
     private boolean isRestoring;
 
-    public TCPReceiver(int port, MessageHandler messageHandler) {
+    public TCPReceiver(int port, MessageHandler messageHandler, Scheduler scheduler) {
         this.messageHandler = messageHandler;
+        this.scheduler = scheduler;
         try {
             this.serverSocket = new ServerSocket(port);
         } catch (IOException e) {
@@ -34,7 +33,7 @@ public class TCPReceiver implements Runnable {
         while (isRestoring) {
             try {
                 Socket socket = serverSocket.accept();
-                executorService.submit(() -> listenForCHUNKS(socket));
+                scheduler.submit(() -> listenForCHUNKS(socket));
             } catch (IOException e) {
                 UI.printWarning("Server socket closing");
             }
@@ -6,33 +6,33 @@ import java.io.*;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import user_interface.UI;
-import utils.Utils;
+import utils.Scheduler;
 
 public class TCPSender {
 
     private int port;
     private ConcurrentHashMap<InetAddress, Socket> sockets;
-    private ExecutorService executorService = Executors.newFixedThreadPool(Utils.MAX_THREADS);
+    private Scheduler scheduler;
 
-    public TCPSender(int port) {
+    public TCPSender(int port, Scheduler scheduler) {
         this.port = port;
+        this.scheduler = scheduler;
         sockets = new ConcurrentHashMap<>();
     }
 
     /**
-     * Starts a thread for each message to be sent.
+     * Sends each message from a peer worker.
      * If the socket for the specified address is still opened, uses it. Else, opens a new socket for that address and
      * adds it to the sockets map for future requests.
-     * Finally sends the message.
+     * Finally sends the message. The message is retained until it has been written to the socket.
      *  @param message - the message to be sent
      * @param address - the address of the destination
      * @param requestedPeerId
      */
     public synchronized void sendMessage(Message message, InetAddress address, Integer requestedPeerId) {
-        executorService.submit(() -> {
+        message.retain();
+        scheduler.submit(() -> {
             Socket socket = null;
 
             if(sockets.containsKey(address)){
@@ -64,6 +64,8 @@ public class TCPSender {
                 } catch (IOException e1) {
                     e.printStackTrace();
                 }
+            } finally {
+                message.release();
             }
         });
     }
@@ -1,6 +1,14 @@
 package message;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import storage.FileChunk;
+import storage.FileId;
+import utils.BufferPool;
+import utils.Utils;
 
 public class Message implements Comparable, Serializable {
 
@@ -17,13 +25,37 @@ public class Message implements Comparable, Serializable {
         ACK_DELETE
     }
 
+    private static final String[] KNOWN_VERSIONS = {"1.0", "1.1", "1.2", "1.3", "1.4", "2.0"};
+    private static final byte[][] TYPE_NAMES = new byte[MessageType.values().length][];
+    private static final MessageType[] TYPES = MessageType.values();
+    private static final byte SPACE = ' ';
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+
+    static {
+        for (MessageType type : TYPES) {
+            TYPE_NAMES[type.ordinal()] = type.name().getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    /**
+     * Marks an absent chunk number or replication degree.
+     */
+    public static final int NONE = -1;
+
     private MessageType messageType;
     private String version;
-    private Integer senderId;
-    private String fileId = null;
-    private Integer chunkNo = null;
-    private Integer replicationDeg = null;
+    private int senderId;
+    private FileId fileId = null;
+    private int chunkNo = NONE;
+    private int replicationDeg = NONE;
     private byte[] body;
+    private int bodyOffset;
+    private int bodyLength;
+
+    private transient FileChunk fileChunk = null;
+    private transient byte[] pooledBuffer = null;
+    private transient AtomicInteger references = null;
 
     /**
      * Creates a Message from the DatagramPacket's data received.
@@ -32,34 +64,169 @@ public class Message implements Comparable, Serializable {
      * @param length - the received packet length.
      */
     public Message(byte[] data, int length) {
-        String header = extractHeader(data);
-        parseHeader(header);
-
-        int nBytes = length - header.length() - 4;
-        body = new byte[nBytes];
-        ByteArrayInputStream message = new ByteArrayInputStream(data, header.length() + 4, nBytes);
-        message.read(body, 0, nBytes);
+        this(data, 0, length);
     }
 
     /**
-     * Extracts the header from the DatagramPacket's data.
+     * Creates a Message from a region of a receive buffer.
+     * The header is scanned in place and its fields are parsed straight into primitives. The body is not copied: the
+     * message keeps an offset/length view over the provided buffer.
      *
      * @param data - the received data
-     * @return the header
+     * @param offset - the offset of the packet in the buffer
+     * @param length - the received packet length
+     */
+    public Message(byte[] data, int offset, int length) {
+        int end = offset + length;
+        int headerEnd = findHeaderEnd(data, offset, end);
+        int pos = skipSpaces(data, offset, headerEnd);
+
+        int tokenEnd = tokenEnd(data, pos, headerEnd);
+        messageType = parseType(data, pos, tokenEnd);
+
+        pos = skipSpaces(data, tokenEnd, headerEnd);
+        tokenEnd = tokenEnd(data, pos, headerEnd);
+        version = parseVersion(data, pos, tokenEnd);
+
+        pos = skipSpaces(data, tokenEnd, headerEnd);
+        tokenEnd = tokenEnd(data, pos, headerEnd);
+        senderId = parseInt(data, pos, tokenEnd);
+
+        pos = skipSpaces(data, tokenEnd, headerEnd);
+        if (pos < headerEnd) {
+            tokenEnd = tokenEnd(data, pos, headerEnd);
+            fileId = FileId.fromHex(data, pos, tokenEnd);
+            pos = skipSpaces(data, tokenEnd, headerEnd);
+        }
+        if (pos < headerEnd) {
+            tokenEnd = tokenEnd(data, pos, headerEnd);
+            chunkNo = parseChunkNo(data, pos, tokenEnd);
+            pos = skipSpaces(data, tokenEnd, headerEnd);
+        }
+        if (messageType == MessageType.PUTCHUNK && pos < headerEnd) {
+            tokenEnd = tokenEnd(data, pos, headerEnd);
+            replicationDeg = parseInt(data, pos, tokenEnd);
+        }
+
+        body = data;
+        bodyOffset = Math.min(headerEnd + 4, end);
+        bodyLength = end - bodyOffset;
+    }
+
+    /**
+     * Creates a Message from a datagram received into a buffer borrowed from the BufferPool.
+     * The message takes ownership of the buffer, which is returned to the pool when the message is released.
+     *
+     * @param buffer - the pooled buffer
+     * @param length - the received packet length
+     * @return the message
+     */
+    public static Message fromPooledBuffer(byte[] buffer, int length) {
+        Message message = new Message(buffer, 0, length);
+        message.pooledBuffer = buffer;
+        message.references = new AtomicInteger(1);
+        return message;
+    }
+
+    /**
+     * Finds the end of the header line, that is, the start of the CRLF CRLF sequence.
+     *
+     * @return the index of the first CR of the sequence or the packet end if there is none
+     */
+    private static int findHeaderEnd(byte[] data, int from, int end) {
+        for (int i = from; i + 3 < end; i++) {
+            if (data[i] == CR && data[i + 1] == LF && data[i + 2] == CR && data[i + 3] == LF) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private static int skipSpaces(byte[] data, int pos, int end) {
+        while (pos < end && (data[pos] == SPACE || data[pos] == CR || data[pos] == LF || data[pos] == '\t')) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static int tokenEnd(byte[] data, int pos, int end) {
+        while (pos < end && data[pos] != SPACE && data[pos] != CR && data[pos] != LF && data[pos] != '\t') {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static MessageType parseType(byte[] data, int from, int to) {
+        for (MessageType type : TYPES) {
+            if (regionEquals(data, from, to, TYPE_NAMES[type.ordinal()])) {
+                return type;
+            }
+        }
+        throw new IllegalArgumentException("Unknown message type " + new String(data, from, to - from, StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Parses the version, reusing the constant strings of the known protocol versions.
      */
-    private String extractHeader(byte[] data) {
-        ByteArrayInputStream stream = new ByteArrayInputStream(data);
-        BufferedReader reader = new BufferedReader(new InputStreamReader(stream));
+    private static String parseVersion(byte[] data, int from, int to) {
+        for (String known : KNOWN_VERSIONS) {
+            if (known.length() != to - from) {
+                continue;
+            }
+            int i = 0;
+            while (i < known.length() && known.charAt(i) == data[from + i]) {
+                i++;
+            }
+            if (i == known.length()) {
+                return known;
+            }
+        }
+        return new String(data, from, to - from, StandardCharsets.US_ASCII);
+    }
+
+    private static int parseInt(byte[] data, int from, int to) {
+        if (from >= to) {
+            throw new NumberFormatException("Empty header field");
+        }
 
-        String header = "";
-        try {
-            header = reader.readLine();
-        } catch (IOException e) {
-            e.printStackTrace();
+        boolean negative = data[from] == '-';
+        int value = 0;
+        for (int i = negative ? from + 1 : from; i < to; i++) {
+            int digit = data[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("Invalid header field " + new String(data, from, to - from, StandardCharsets.US_ASCII));
+            }
+            value = value * 10 + digit;
         }
-        return header;
+        return negative ? -value : value;
     }
 
+    /**
+     * Parses a chunk number, which must be between 0 and MAX_CHUNKS.
+     */
+    private static int parseChunkNo(byte[] data, int from, int to) {
+        int chunkNo = parseInt(data, from, to);
+        if (!isValidChunkNo(chunkNo)) {
+            throw new IllegalArgumentException("Invalid chunk number " + chunkNo);
+        }
+        return chunkNo;
+    }
+
+    private static boolean isValidChunkNo(int chunkNo) {
+        return chunkNo >= 0 && chunkNo < Utils.MAX_CHUNKS;
+    }
+
+    private static boolean regionEquals(byte[] data, int from, int to, byte[] expected) {
+        if (to - from != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (data[from + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
 
     /**
      * Constructor to create CONTROL messages
@@ -69,11 +236,11 @@ public class Message implements Comparable, Serializable {
      * @param body        - the body of the message
      * @param messageType - the message type
      */
-    public Message(String version, Integer senderId, byte[] body, MessageType messageType) {
+    public Message(String version, int senderId, byte[] body, MessageType messageType) {
         this.version = version;
         this.senderId = senderId;
-        this.body = body;
         this.messageType = messageType;
+        setBody(body);
     }
 
     /**
@@ -85,7 +252,7 @@ public class Message implements Comparable, Serializable {
      * @param body        - the body of the message
      * @param messageType - the message type
      */
-    public Message(String version, Integer senderId, String fileId, byte[] body, MessageType messageType) {
+    public Message(String version, int senderId, FileId fileId, byte[] body, MessageType messageType) {
         this(version, senderId, body, messageType);
         this.fileId = fileId;
     }
@@ -100,7 +267,7 @@ public class Message implements Comparable, Serializable {
      * @param messageType - the message type
      * @param chunkNo     - the chunk No
      */
-    public Message(String version, Integer senderId, String fileId, byte[] body, MessageType messageType, int chunkNo) {
+    public Message(String version, int senderId, FileId fileId, byte[] body, MessageType messageType, int chunkNo) {
         this(version, senderId, fileId, body, messageType);
         this.chunkNo = chunkNo;
     }
@@ -116,169 +283,306 @@ public class Message implements Comparable, Serializable {
      * @param chunkNo        - the chunk No
      * @param replicationDeg - the replication degree
      */
-    public Message(String version, Integer senderId, String fileId, byte[] body, MessageType messageType, int chunkNo, int replicationDeg) {
+    public Message(String version, int senderId, FileId fileId, byte[] body, MessageType messageType, int chunkNo, int replicationDeg) {
         this(version, senderId, fileId, body, messageType, chunkNo);
         this.replicationDeg = replicationDeg;
     }
 
     /**
-     * Attributes the value of each header element.
+     * Retrieves the message packet (header + body).
      *
-     * @param str - the header
+     * @param sendBody - if the body should be added or not to the packet (RESTORE ENHANCEMENT)
+     * @return the message packet
      */
-    private void parseHeader(String str) {
-        String[] header = str.split("\\s+");
-        switch (header[0]) {
-            case "PUTCHUNK":
-                this.messageType = MessageType.PUTCHUNK;
-                this.replicationDeg = Integer.parseInt(header[5]);
-                break;
-            case "STORED":
-                this.messageType = MessageType.STORED;
-                break;
-            case "GETCHUNK":
-                this.messageType = MessageType.GETCHUNK;
-                break;
-            case "CHUNK":
-                this.messageType = MessageType.CHUNK;
-                break;
-            case "DELETE":
-                this.messageType = MessageType.DELETE;
-                break;
-            case "REMOVED":
-                this.messageType = MessageType.REMOVED;
-                break;
-            case "CONTROL":
-                this.messageType = MessageType.CONTROL;
-                break;
-            case "ACK_DELETE":
-                this.messageType = MessageType.ACK_DELETE;
-                break;
-            default:
-                break;
-        }
-
-        this.version = header[1];
-        this.senderId = Integer.parseInt(header[2]);
-        if (header.length > 3) {
-            this.fileId = header[3];
-        }
-        if (header.length > 4) {
-            this.chunkNo = Integer.parseInt(header[4]);
-        }
+    public byte[] getPacket(boolean sendBody) {
+        int headerLength = getHeaderLength();
+        int length = sendBody ? headerLength + bodyLength : headerLength;
+
+        byte[] packet = new byte[length];
+        writePacket(packet, 0, sendBody);
+        return packet;
     }
 
     /**
-     * Retrieves the message packet (header + body).
+     * Writes the message packet (header + body) into the provided buffer.
+     * The header is encoded straight into the buffer, without building intermediate strings.
      *
+     * @param dest - the destination buffer
+     * @param offset - the offset where the packet starts
      * @param sendBody - if the body should be added or not to the packet (RESTORE ENHANCEMENT)
-     * @return the message packet
+     * @return the number of bytes written
      */
-    public byte[] getPacket(boolean sendBody) {
-        String header = buildHeader();
+    public int writePacket(byte[] dest, int offset, boolean sendBody) {
+        int pos = writeHeader(dest, offset);
 
-        byte[] headerBytes = header.getBytes();
-
-        int bodyLength = 0;
-        if (body != null && sendBody) {
-            bodyLength = body.length;
+        if (sendBody && bodyLength > 0) {
+            System.arraycopy(body, bodyOffset, dest, pos, bodyLength);
+            pos += bodyLength;
         }
 
-        byte[] packet = new byte[headerBytes.length + bodyLength];
-        System.arraycopy(headerBytes, 0, packet, 0, headerBytes.length);
+        return pos - offset;
+    }
 
-        if (bodyLength != 0) {
-            System.arraycopy(this.body, 0, packet, header.length(), bodyLength);
+    /**
+     * Computes the length of the encoded header, including the trailing CRLF CRLF.
+     *
+     * @return the header length in bytes
+     */
+    public int getHeaderLength() {
+        byte[] typeName = messageType == null ? null : TYPE_NAMES[messageType.ordinal()];
+        int length = (typeName == null ? "NOT_VALID".length() : typeName.length + 1);
+        length += version.length() + 1 + digits(senderId) + 1;
+
+        if (fileId != null) {
+            length += fileId.hexLength() + 1;
+        }
+        if (chunkNo != NONE) {
+            length += digits(chunkNo) + 1;
+        }
+        if (replicationDeg != NONE) {
+            length += digits(replicationDeg) + 1;
         }
 
-        return packet;
+        return length + 4;
     }
 
     /**
-     * Generates the message header.
+     * Encodes the message header.
      *
-     * @return the message header.
+     * @param dest - the destination buffer
+     * @param pos - the position where the header starts
+     * @return the position after the header
      */
-    private String buildHeader() {
-        String header = "";
-
-        switch (messageType) {
-            case PUTCHUNK:
-                header += "PUTCHUNK ";
-                break;
-            case STORED:
-                header += "STORED ";
-                break;
-            case GETCHUNK:
-                header += "GETCHUNK ";
-                break;
-            case CHUNK:
-                header += "CHUNK ";
-                break;
-            case DELETE:
-                header += "DELETE ";
-                break;
-            case REMOVED:
-                header += "REMOVED ";
-                break;
-            case CONTROL:
-                header += "CONTROL ";
-                break;
-            case ACK_DELETE:
-                header += "ACK_DELETE ";
-                break;
-            default:
-                header += "NOT_VALID";
-                break;
-        }
-
-        header += version + " " + senderId + " ";
-
-        if (this.fileId != null) {
-            header += fileId + " ";
-        }
-
-        if (this.chunkNo != null) {
-            header += chunkNo + " ";
-        }
-        if (this.replicationDeg != null) {
-            header += replicationDeg + " ";
-        }
-
-        String CRLF = "\r\n";
-
-        header += CRLF + CRLF;
-        return header;
+    private int writeHeader(byte[] dest, int pos) {
+        if (messageType == null) {
+            pos = writeAscii(dest, pos, "NOT_VALID");
+        } else {
+            byte[] typeName = TYPE_NAMES[messageType.ordinal()];
+            System.arraycopy(typeName, 0, dest, pos, typeName.length);
+            pos += typeName.length;
+            dest[pos++] = SPACE;
+        }
+
+        pos = writeAscii(dest, pos, version);
+        dest[pos++] = SPACE;
+        pos = writeInt(dest, pos, senderId);
+        dest[pos++] = SPACE;
+
+        if (fileId != null) {
+            pos = fileId.writeHex(dest, pos);
+            dest[pos++] = SPACE;
+        }
+        if (chunkNo != NONE) {
+            pos = writeInt(dest, pos, chunkNo);
+            dest[pos++] = SPACE;
+        }
+        if (replicationDeg != NONE) {
+            pos = writeInt(dest, pos, replicationDeg);
+            dest[pos++] = SPACE;
+        }
+
+        dest[pos++] = CR;
+        dest[pos++] = LF;
+        dest[pos++] = CR;
+        dest[pos++] = LF;
+        return pos;
+    }
+
+    private static int writeAscii(byte[] dest, int pos, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            dest[pos++] = (byte) value.charAt(i);
+        }
+        return pos;
+    }
+
+    private static int writeInt(byte[] dest, int pos, int value) {
+        if (value < 0) {
+            dest[pos++] = '-';
+            value = -value;
+        }
+
+        int end = pos + digits(value);
+        int i = end;
+        do {
+            dest[--i] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        return end;
+    }
+
+    private static int digits(int value) {
+        int count = value < 0 ? 2 : 1;
+        value = Math.abs(value);
+        while (value >= 10) {
+            value /= 10;
+            count++;
+        }
+        return count;
     }
 
     public boolean hasBody() {
-        return (body != null && body.length > 0);
+        return bodyLength > 0;
     }
 
     public String getVersion() {
         return version;
     }
 
-    public Integer getSenderId() {
+    public int getSenderId() {
         return senderId;
     }
 
-    public String getFileId() {
+    public FileId getFileId() {
         return fileId;
     }
 
-    public Integer getChunkNo() {
+    /**
+     * Retrieves the key of the chunk this message refers to. The key is created once per message, so every lookup made
+     * while handling the message reuses it.
+     *
+     * @return the chunk key
+     */
+    public FileChunk getFileChunk() {
+        if (fileChunk == null) {
+            fileChunk = new FileChunk(fileId, chunkNo);
+        }
+        return fileChunk;
+    }
+
+    public int getChunkNo() {
         return chunkNo;
     }
 
-    public Integer getReplicationDeg() {
+    public int getReplicationDeg() {
         return replicationDeg;
     }
 
+    /**
+     * Retrieves the chunk numbers a REMOVED message refers to. Enhanced peers aggregate the REMOVED notifications of a
+     * file: the header carries the first chunk number and the body the others, as 4 byte big-endian integers.
+     * Chunk numbers out of range are left out.
+     *
+     * @return the chunk numbers, the one of the header first
+     */
+    public int[] getChunkNos() {
+        int extraChunks = hasBody() ? bodyLength / Integer.BYTES : 0;
+        int[] chunkNos = new int[extraChunks + 1];
+        chunkNos[0] = chunkNo;
+
+        int count = 1;
+        int pos = bodyOffset;
+        for (int i = 1; i <= extraChunks; i++) {
+            int extraChunkNo = (body[pos] & 0xFF) << 24 | (body[pos + 1] & 0xFF) << 16 | (body[pos + 2] & 0xFF) << 8 | (body[pos + 3] & 0xFF);
+            if (isValidChunkNo(extraChunkNo)) {
+                chunkNos[count++] = extraChunkNo;
+            }
+            pos += Integer.BYTES;
+        }
+        return count == chunkNos.length ? chunkNos : Arrays.copyOf(chunkNos, count);
+    }
+
+    /**
+     * Encodes chunk numbers as the body of an aggregated REMOVED message.
+     *
+     * @param chunkNos - the chunk numbers
+     * @param from - the index of the first chunk number to encode
+     * @param to - the index after the last chunk number to encode
+     * @return the body
+     */
+    public static byte[] encodeChunkNos(int[] chunkNos, int from, int to) {
+        byte[] body = new byte[(to - from) * Integer.BYTES];
+        int pos = 0;
+        for (int i = from; i < to; i++) {
+            body[pos++] = (byte) (chunkNos[i] >>> 24);
+            body[pos++] = (byte) (chunkNos[i] >>> 16);
+            body[pos++] = (byte) (chunkNos[i] >>> 8);
+            body[pos++] = (byte) chunkNos[i];
+        }
+        return body;
+    }
+
+    /**
+     * Retrieves the body as an array of its exact size. If the message is a view over a receive buffer, the body is
+     * copied out once and the view is dropped.
+     *
+     * @return the body or null if the message has none
+     */
     public byte[] getBody() {
+        if (body != null && (bodyOffset != 0 || bodyLength != body.length)) {
+            setBody(Arrays.copyOfRange(body, bodyOffset, bodyOffset + bodyLength));
+        }
         return body;
     }
 
+    /**
+     * Retrieves the array backing the body, to be read from getBodyOffset() up to getBodyLength() bytes.
+     *
+     * @return the backing array
+     */
+    public byte[] getBodyArray() {
+        return body;
+    }
+
+    public int getBodyOffset() {
+        return bodyOffset;
+    }
+
+    public int getBodyLength() {
+        return bodyLength;
+    }
+
+    /**
+     * Sets a body read into a buffer borrowed from the BufferPool. The message takes ownership of the buffer.
+     *
+     * @param buffer - the pooled buffer
+     * @param length - the body length
+     */
+    public void setPooledBody(byte[] buffer, int length) {
+        release();
+        this.body = buffer;
+        this.bodyOffset = 0;
+        this.bodyLength = length;
+        this.pooledBuffer = buffer;
+        this.references = new AtomicInteger(1);
+    }
+
+    /**
+     * Keeps the pooled buffer of the message alive until a matching release().
+     *
+     * @return this message
+     */
+    public Message retain() {
+        if (references != null) {
+            references.incrementAndGet();
+        }
+        return this;
+    }
+
+    /**
+     * Drops a reference to the message. When the last one is dropped, the pooled buffer is handed back to the pool and
+     * the body view over it is cleared. Messages that do not borrow a buffer are not affected.
+     */
+    public void release() {
+        if (references == null || references.decrementAndGet() != 0) {
+            return;
+        }
+
+        if (body == pooledBuffer) {
+            body = null;
+            bodyOffset = 0;
+            bodyLength = 0;
+        }
+        BufferPool.release(pooledBuffer);
+        pooledBuffer = null;
+        references = null;
+    }
+
+    private void setBody(byte[] body) {
+        this.body = body;
+        this.bodyOffset = 0;
+        this.bodyLength = body == null ? 0 : body.length;
+    }
+
     public MessageType getMessageType() {
         return messageType;
     }
@@ -291,19 +595,22 @@ public class Message implements Comparable, Serializable {
         this.replicationDeg = replicationDeg;
     }
 
+    /**
+     * Drops the receive buffer before the message is serialized, so that only the body itself is written.
+     */
+    private void writeObject(ObjectOutputStream stream) throws IOException {
+        getBody();
+        stream.defaultWriteObject();
+    }
+
     @Override
     public String toString() {
-        String message = buildHeader();
-        if (body != null) {
-            message += new String(this.body);
-        }
-
-        return message;
+        return new String(getPacket(true), StandardCharsets.ISO_8859_1);
     }
 
     @Override
     public int compareTo(Object obj) {
         Message other = (Message) obj;
-        return this.chunkNo - other.getChunkNo();
+        return Integer.compare(this.chunkNo, other.getChunkNo());
     }
 }
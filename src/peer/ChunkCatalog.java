@@ -0,0 +1,258 @@
+package peer;
+
+import storage.ChunkInfo;
+import storage.FileChunk;
+import storage.FileId;
+import user_interface.UI;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+
+public class ChunkCatalog {
+
+    static final int HEADER_SIZE = 8;
+    private static final int RECORD_SIZE = 64;
+    private static final int CHUNK_NO = FileId.SIZE;
+    private static final int CHUNK_SIZE = CHUNK_NO + Integer.BYTES;
+    private static final int KEY_SIZE = CHUNK_SIZE;
+    private static final int DESIRED_REPLICATION_DEG = CHUNK_SIZE + Integer.BYTES;
+    private static final int PEER_MASK = DESIRED_REPLICATION_DEG + Integer.BYTES;
+    private static final int OVERFLOW_INDEX = PEER_MASK + Long.BYTES;
+    private static final int OVERFLOW_COUNT = OVERFLOW_INDEX + Integer.BYTES;
+    private static final int FLAGS = OVERFLOW_COUNT + Short.BYTES;
+    private static final byte STORED = 1;
+
+    private ByteBuffer buffer;
+    private int count;
+    private int overflowOffset;
+
+    /**
+     * Opens the catalogue of the stored chunks of a snapshot, usually memory mapped, without reading it.
+     * It holds a header (chunk count, overflow peer count), then one fixed size record per chunk sorted by file id and
+     * chunk number: file id, chunk number, size, desired replication degree, the mask of the peers with ids from 0 to
+     * 63, the index and count of its other peers and whether the chunk is stored. The other peers follow the records.
+     * A chunk is looked up with a binary search over the records, so the catalogue can answer as soon as it is opened,
+     * while the state is rebuilt from it.
+     *
+     * @param buffer - the catalogue
+     */
+    ChunkCatalog(ByteBuffer buffer) {
+        this.buffer = buffer;
+        count = buffer.getInt(0);
+        overflowOffset = HEADER_SIZE + count * RECORD_SIZE;
+    }
+
+    /**
+     * @param count - the number of chunks
+     * @param overflowCount - the number of overflow peers
+     * @return the size of the catalogue, in bytes
+     */
+    static long getSize(int count, int overflowCount) {
+        return HEADER_SIZE + (long) count * RECORD_SIZE + (long) overflowCount * Integer.BYTES;
+    }
+
+    /**
+     * Writes the catalogue of the chunks in the stored chunks container of the peer state.
+     *
+     * @param out - the output stream
+     * @param peerState - the peer state
+     */
+    static void write(DataOutputStream out, PeerState peerState) throws IOException {
+        ArrayList<Record> records = new ArrayList<>(peerState.getStoredChunks().size());
+        int overflowCount = 0;
+        for (Map.Entry<FileChunk, ChunkInfo> entry : peerState.getStoredChunks().entrySet()) {
+            FileChunk fileChunk = entry.getKey();
+            if (fileChunk.getFileId().length() != FileId.SIZE) {
+                UI.printError("Chunk " + fileChunk.getChunkNo() + " of file " + fileChunk.getFileId() + " has an invalid file id");
+                continue;
+            }
+
+            Record record = new Record(fileChunk, entry.getValue(), peerState.isChunkStored(fileChunk));
+            overflowCount += record.overflowPeers.length;
+            records.add(record);
+        }
+        records.sort((a, b) -> {
+            int cmp = a.fileChunk.getFileId().compareTo(b.fileChunk.getFileId());
+            return cmp != 0 ? cmp : Integer.compare(a.fileChunk.getChunkNo(), b.fileChunk.getChunkNo());
+        });
+
+        out.writeInt(records.size());
+        out.writeInt(overflowCount);
+
+        byte[] bytes = new byte[RECORD_SIZE];
+        ByteBuffer recordBuffer = ByteBuffer.wrap(bytes);
+        int overflowIndex = 0;
+        for (Record record : records) {
+            record.fileChunk.getFileId().writeBytes(bytes, 0);
+            recordBuffer.putInt(CHUNK_NO, record.fileChunk.getChunkNo());
+            recordBuffer.putInt(CHUNK_SIZE, record.chunkInfo.getSize());
+            recordBuffer.putInt(DESIRED_REPLICATION_DEG, record.chunkInfo.getDesiredReplicationDeg());
+            recordBuffer.putLong(PEER_MASK, record.peerMask);
+            recordBuffer.putInt(OVERFLOW_INDEX, overflowIndex);
+            recordBuffer.putShort(OVERFLOW_COUNT, (short) record.overflowPeers.length);
+            recordBuffer.put(FLAGS, record.isStored ? STORED : 0);
+            out.write(bytes);
+            overflowIndex += record.overflowPeers.length;
+        }
+
+        for (Record record : records) {
+            for (int peerId : record.overflowPeers) {
+                out.writeInt(peerId);
+            }
+        }
+    }
+
+    /**
+     * @return the number of chunks in the catalogue
+     */
+    int getCount() {
+        return count;
+    }
+
+    /**
+     * Checks if a chunk is stored, with a binary search over the records.
+     *
+     * @param fileId - the file id
+     * @param chunkNo - the chunk number
+     * @return true if the chunk is in the catalogue and is stored
+     */
+    boolean isChunkStored(FileId fileId, int chunkNo) {
+        if (fileId.length() != FileId.SIZE) {
+            return false;
+        }
+
+        byte[] key = new byte[KEY_SIZE];
+        ByteBuffer.wrap(key).putInt(fileId.writeBytes(key, 0), chunkNo);
+
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int cmp = compareKey(middle, key);
+            if (cmp < 0) {
+                low = middle + 1;
+            } else if (cmp > 0) {
+                high = middle - 1;
+            } else {
+                return (buffer.get(getOffset(middle) + FLAGS) & STORED) != 0;
+            }
+        }
+        return false;
+    }
+
+    private int compareKey(int index, byte[] key) {
+        int offset = getOffset(index);
+        for (int i = 0; i < KEY_SIZE; i++) {
+            int cmp = Integer.compare(buffer.get(offset + i) & 0xFF, key[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Splits the records into ranges that can be loaded in parallel. All the chunks of a file fall in the same range,
+     * since the containers of a file must only be updated by one thread.
+     *
+     * @param parts - the number of ranges wanted
+     * @return the range bounds: range i goes from bounds[i] to bounds[i + 1]
+     */
+    int[] split(int parts) {
+        ArrayList<Integer> bounds = new ArrayList<>();
+        bounds.add(0);
+        for (int part = 1; part < parts; part++) {
+            int bound = Math.max(bounds.get(bounds.size() - 1), (int) ((long) count * part / parts));
+            while (bound > 0 && bound < count && isSameFile(bound - 1, bound)) {
+                bound++;
+            }
+            if (bound > bounds.get(bounds.size() - 1) && bound < count) {
+                bounds.add(bound);
+            }
+        }
+        bounds.add(count);
+        return bounds.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private boolean isSameFile(int index, int otherIndex) {
+        int offset = getOffset(index);
+        int otherOffset = getOffset(otherIndex);
+        for (int i = 0; i < FileId.SIZE; i++) {
+            if (buffer.get(offset + i) != buffer.get(otherOffset + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Rebuilds the stored chunks containers of the peer state from a range of records.
+     *
+     * @param from - the first record
+     * @param to - the record after the last
+     * @param peerState - the peer state
+     */
+    void load(int from, int to, PeerState peerState) {
+        byte[] fileIdBytes = new byte[FileId.SIZE];
+        FileId fileId = null;
+        for (int i = from; i < to; i++) {
+            int offset = getOffset(i);
+            if (fileId == null || !isSameFile(i - 1, i)) {
+                fileIdBytes = new byte[FileId.SIZE];
+                for (int j = 0; j < FileId.SIZE; j++) {
+                    fileIdBytes[j] = buffer.get(offset + j);
+                }
+                fileId = new FileId(fileIdBytes);
+            }
+
+            ChunkInfo chunkInfo = new ChunkInfo(buffer.getInt(offset + DESIRED_REPLICATION_DEG), buffer.getInt(offset + CHUNK_SIZE));
+            for (long mask = buffer.getLong(offset + PEER_MASK); mask != 0; mask &= mask - 1) {
+                chunkInfo.addPeer(Long.numberOfTrailingZeros(mask));
+            }
+            int overflowIndex = buffer.getInt(offset + OVERFLOW_INDEX);
+            int overflowPeers = buffer.getShort(offset + OVERFLOW_COUNT);
+            for (int j = 0; j < overflowPeers; j++) {
+                chunkInfo.addPeer(buffer.getInt(overflowOffset + (overflowIndex + j) * Integer.BYTES));
+            }
+
+            boolean isStored = (buffer.get(offset + FLAGS) & STORED) != 0;
+            peerState.restoreStoredChunk(new FileChunk(fileId, buffer.getInt(offset + CHUNK_NO)), isStored, chunkInfo);
+        }
+    }
+
+    private static int getOffset(int index) {
+        return HEADER_SIZE + index * RECORD_SIZE;
+    }
+
+    /**
+     * A chunk to be written to the catalogue.
+     */
+    private static class Record {
+        private FileChunk fileChunk;
+        private ChunkInfo chunkInfo;
+        private boolean isStored;
+        private long peerMask = 0;
+        private int[] overflowPeers;
+
+        Record(FileChunk fileChunk, ChunkInfo chunkInfo, boolean isStored) {
+            this.fileChunk = fileChunk;
+            this.chunkInfo = chunkInfo;
+            this.isStored = isStored;
+
+            int[] peers = chunkInfo.getPeers();
+            int overflowCount = 0;
+            for (int peerId : peers) {
+                if (peerId >= 0 && peerId < Long.SIZE) {
+                    peerMask |= 1L << peerId;
+                } else {
+                    peers[overflowCount++] = peerId;
+                }
+            }
+            overflowPeers = Arrays.copyOf(peers, overflowCount);
+        }
+    }
+}
@@ -5,18 +5,18 @@ import channels.*;
 import protocols.*;
 import interfaces.RMIProtocol;
 import user_interface.UI;
+import utils.Scheduler;
 
 import java.io.*;
 import java.net.InetAddress;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CompletableFuture;
 
-import static utils.Utils.MAX_THREADS;
-import static utils.Utils.SAVING_INTERVAL;
+import static utils.Utils.MDB_SEND_RATE;
+import static utils.Utils.STATE_LOG_FLUSH_INTERVAL;
+import static utils.Utils.WORKER_THREADS;
 import static utils.Utils.parseRMI;
 
 public class Peer implements RMIProtocol {
@@ -24,13 +24,16 @@ public class Peer implements RMIProtocol {
     private Channel MCChannel;
     private Channel MDBChannel;
     private Channel MDRChannel;
+    private ChannelSelector channelSelector;
     private MessageHandler messageHandler;
     private TCPSender tcpSender;
     private TCPReceiver tcpReceiver = null;
     private int serverId;
     private String version;
     private PeerState peerState;
-    private ScheduledExecutorService scheduledExecutorService = Executors.newScheduledThreadPool(MAX_THREADS);
+    private StateLog stateLog;
+    private CompletableFuture<Void> stateLoaded = new CompletableFuture<>();
+    private Scheduler scheduler = new Scheduler(WORKER_THREADS);
     private int MDRPort;
     private final int TCP_PORT = 4444;
     private boolean isEnhanced = false;
@@ -39,6 +42,7 @@ public class Peer implements RMIProtocol {
         UI.printBoot("------------------- Booting Peer " + args[1] + " -------------------");
         UI.nl();
         UI.printBoot("Protocols version " + args[0]);
+        UI.printBoot("Execution mode " + scheduler.getExecutionMode());
         version = args[0];
         serverId = Integer.parseInt(args[1]);
 
@@ -53,16 +57,16 @@ public class Peer implements RMIProtocol {
 
         initRMI(args[1]);
 
-        if (!loadPeerState()) {
-            peerState = new PeerState(version, serverId);
-        }
+        loadPeerState();
+        UI.printBoot("Storage backend " + peerState.getStorageManager().getStorageBackend());
+        UI.printBoot("Durability mode " + peerState.getStorageManager().getDurabilityMode());
 
         messageHandler = new MessageHandler(this);
 
         UI.printBoot("------------- Booting Multicast Channels -------------");
         UI.nl();
 
-        scheduledExecutorService.scheduleAtFixedRate(this::saveController, 0, SAVING_INTERVAL, TimeUnit.SECONDS);
+        scheduler.scheduleAtFixedRate(this::saveController, STATE_LOG_FLUSH_INTERVAL, STATE_LOG_FLUSH_INTERVAL);
 
         MDRPort = Integer.parseInt(args[8]);
         initChannels(args[3], Integer.parseInt(args[4]), args[5], Integer.parseInt(args[6]), args[7], MDRPort);
@@ -114,64 +118,105 @@ public class Peer implements RMIProtocol {
     }
 
     /**
-     * Loads the peer state from non-volatile memory, if it exists. Otherwise, creates a new Peer.
+     * Loads the peer state from non-volatile memory: loads the last snapshot, if it exists, or creates a new peer
+     * state. Only the small part of the snapshot that is not the chunk catalogue is read here, so the peer can join the
+     * channels at once and answer GETCHUNK messages from the catalogue. The rest of the state is recovered in the
+     * background.
+     */
+    private void loadPeerState() {
+        long start = System.currentTimeMillis();
+        stateLog = new StateLog(serverId);
+        peerState = stateLog.loadSnapshot();
+        if (peerState == null) {
+            UI.printWarning("Couldn't find any saved peer state. Starting a new one");
+            peerState = new PeerState(version, serverId);
+        } else {
+            peerState.setVersion(version);
+        }
+
+        new Thread(() -> recoverPeerState(start), "state-loader").start();
+    }
+
+    /**
+     * Recovers the rest of the peer state: rebuilds the stored chunks containers from the chunk catalogue, in parallel
+     * on the workers, one range of files each, and replays on top of it the changes logged since the snapshot.
+     * Changes are logged from then on. Completes stateLoaded even if the recovery fails, so the peer does not hang.
      *
-     * @return true if the peer state was loaded successfully or false if otherwise
+     * @param start - the time the peer started loading its state
      */
-    private boolean loadPeerState() {
+    private void recoverPeerState(long start) {
         try {
-            FileInputStream fileInputStream = new FileInputStream("PeerState" + serverId + ".ser");
-            ObjectInputStream objectInputStream = new ObjectInputStream(fileInputStream);
-            peerState = (PeerState) objectInputStream.readObject();
-            peerState.setVersion(version);
-            objectInputStream.close();
-            fileInputStream.close();
-            return true;
-        } catch (FileNotFoundException e) {
-            UI.printWarning("Couldn't find any saved peer state. Starting a new one");
-        } catch (IOException | ClassNotFoundException e) {
+            ChunkCatalog chunkCatalog = peerState.getChunkCatalog();
+            int chunks = 0;
+            if (chunkCatalog != null) {
+                int[] bounds = chunkCatalog.split(WORKER_THREADS);
+                CompletableFuture<?>[] loads = new CompletableFuture<?>[bounds.length - 1];
+                for (int i = 0; i < loads.length; i++) {
+                    int from = bounds[i];
+                    int to = bounds[i + 1];
+                    loads[i] = CompletableFuture.runAsync(() -> chunkCatalog.load(from, to, peerState), scheduler::submit);
+                }
+                CompletableFuture.allOf(loads).join();
+                chunks = chunkCatalog.getCount();
+            }
+
+            int records = stateLog.replay(peerState);
+            peerState.recover();
+            stateLog.open();
+            peerState.setStateLog(stateLog);
+            peerState.setChunkCatalog(null);
+            UI.printBoot("Loaded peer state in " + (System.currentTimeMillis() - start) + " ms: " + chunks + " chunks in the snapshot, " + records + " logged changes");
+        } catch (Exception e) {
+            UI.printError("Failed to load the peer state");
             e.printStackTrace();
+        } finally {
+            stateLoaded.complete(null);
         }
+    }
 
-        return false;
+    /**
+     * Retrieves the future completed once the peer state is loaded. Until then, only the restore ingress lanes are
+     * handled, PUTCHUNK messages are shed and every other message and RMI operation waits for it.
+     *
+     * @return the future
+     */
+    public CompletableFuture<Void> getStateLoaded() {
+        return stateLoaded;
     }
 
     /**
-     * Initiates channels.
+     * Initiates channels. The three multicast groups are served by a single selector thread.
      */
     private void initChannels(String MCAddress, int MCPort, String MDBAddress, int MDBPort, String MDRAddress, int MDRPort) {
         try {
-            MCChannel = new Channel("MC", MCAddress, MCPort, messageHandler);
-            MDBChannel = new Channel("MDB", MDBAddress, MDBPort, messageHandler);
-            MDRChannel = new Channel("MDR", MDRAddress, MDRPort, messageHandler);
+            MCChannel = new Channel("MC", MCAddress, MCPort, scheduler);
+            MDBChannel = new Channel("MDB", MDBAddress, MDBPort, scheduler);
+            MDRChannel = new Channel("MDR", MDRAddress, MDRPort, scheduler);
+            MDBChannel.setPacer(new Pacer(MDB_SEND_RATE));
 
-            new Thread(MCChannel).start();
-            new Thread(MDBChannel).start();
-            new Thread(MDRChannel).start();
+            channelSelector = new ChannelSelector(messageHandler);
+            channelSelector.register(MCChannel);
+            channelSelector.register(MDBChannel);
+            channelSelector.register(MDRChannel);
+
+            new Thread(channelSelector, "channel-selector").start();
         } catch (IOException e) {
             e.printStackTrace();
         }
 
         if (isEnhanced) {
-            tcpSender = new TCPSender(TCP_PORT);
+            tcpSender = new TCPSender(TCP_PORT, scheduler);
         }
     }
 
     /**
-     * Saves the peer state to non-volatile memory
+     * Saves the peer state to non-volatile memory: flushes the changes logged and takes a snapshot once enough of them
+     * were logged.
      */
     private void saveController() {
-        try {
-            FileOutputStream controllerFile = new FileOutputStream("PeerState" + serverId + ".ser");
-            ObjectOutputStream controllerObject = new ObjectOutputStream(controllerFile);
-            controllerObject.writeObject(this.peerState);
-            controllerObject.close();
-            controllerFile.close();
-        } catch (FileNotFoundException e) {
-            UI.printError("Error creating PeerState" + serverId + ".ser");
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
+        stateLog.flush();
+        if (stateLog.shouldSnapshot()) {
+            stateLog.snapshot(peerState);
         }
     }
 
@@ -191,36 +236,63 @@ public class Peer implements RMIProtocol {
         return isEnhanced;
     }
 
+    /**
+     * Retrieves the scheduler shared by the peer components: all protocol delays wait on its timer wheel and all tasks
+     * run on its workers.
+     *
+     * @return the scheduler
+     */
+    public Scheduler getScheduler() {
+        return scheduler;
+    }
+
     @Override
     public void backup(String filePath, int replicationDeg) {
-        scheduledExecutorService.submit(new BackupInitiator(peerState, filePath, replicationDeg, MDBChannel));
+        stateLoaded.join();
+        scheduler.submit(new BackupInitiator(peerState, filePath, replicationDeg, MDBChannel));
     }
 
     @Override
     public void restore(String filePath) {
+        stateLoaded.join();
         if (!version.equals("1.0")) {
             UI.printInfo("Enhanced restore protocols initiated  (v" + version + ")");
-            tcpReceiver = new TCPReceiver(TCP_PORT + serverId, messageHandler);
-            scheduledExecutorService.submit(tcpReceiver);
+            tcpReceiver = new TCPReceiver(TCP_PORT + serverId, messageHandler, scheduler);
+            new Thread(tcpReceiver, "tcp-receiver").start();
         }
 
-        scheduledExecutorService.submit(new RestoreInitiator(peerState, filePath, MCChannel));
+        scheduler.submit(new RestoreInitiator(peerState, filePath, MCChannel));
     }
 
     @Override
     public void delete(String filePath) {
-        scheduledExecutorService.submit(new DeleteInitiator(this, filePath, MCChannel));
+        stateLoaded.join();
+        scheduler.submit(new DeleteInitiator(this, filePath, MCChannel));
     }
 
     @Override
     public void reclaim(long space) {
-        scheduledExecutorService.submit(new ReclaimInitiator(peerState, space, MCChannel));
+        stateLoaded.join();
+        scheduler.submit(new ReclaimInitiator(peerState, space, MCChannel, scheduler));
     }
 
     @Override
     public void state() {
+        stateLoaded.join();
         UI.printInfo("-------------------- Peer " + serverId + " State --------------------");
         UI.print(peerState.getPeerState());
+        UI.print("Send queues: \n  MC: " + MCChannel.getQueueDepth() + "\n  MDB: " + MDBChannel.getQueueDepth() + "\n  MDR: " + MDRChannel.getQueueDepth());
+        int control = 0, restore = 0, bulk = 0;
+        long deferred = 0, dropped = 0;
+        for (IngressQueue ingressQueue : messageHandler.getIngressQueues()) {
+            control += ingressQueue.getDepth(IngressQueue.Lane.CONTROL);
+            restore += ingressQueue.getDepth(IngressQueue.Lane.RESTORE);
+            bulk += ingressQueue.getDepth(IngressQueue.Lane.BULK);
+            deferred += ingressQueue.getDeferredMessages();
+            dropped += ingressQueue.getDroppedMessages();
+        }
+        UI.print("Ingress queues (" + messageHandler.getIngressQueues().length + " shards): \n  Control: " + control + "\n  Restore: " + restore
+                + "\n  Bulk: " + bulk + "\n  Deferred: " + deferred + "\n  Dropped: " + dropped);
         UI.printInfo("------------------------------------------------------");
     }
 
@@ -1,19 +1,27 @@
 package peer;
 
 import message.*;
+import storage.FileId;
+import storage.ChunkBitmap;
+import storage.ChunkCache;
 import storage.ChunkInfo;
 import storage.FileChunk;
 import storage.FileInfo;
+import storage.ReclaimIndex;
 import storage.StorageManager;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.*;
 import java.util.concurrent.*;
 
 import user_interface.UI;
+import utils.Utils;
 
 public class PeerState implements Serializable {
 
-    private static final long serialVersionUID = 1L;
+    private static final long serialVersionUID = 3L;
     private String version;
     private Integer serverId;
     private StorageManager storageManager;
@@ -21,21 +29,27 @@ public class PeerState implements Serializable {
     private ConcurrentHashMap<String, FileInfo> backedUpFiles;
     private ConcurrentHashMap<FileChunk, ChunkInfo> backedUpChunks;
 
-    private ConcurrentHashMap<String, ArrayList<Integer>> storedChunksByFileId;
-    private ConcurrentHashMap<FileChunk, ChunkInfo> storedChunks;
-    private ConcurrentHashMap<FileChunk, ChunkInfo> storedChunks_ENH;
+    private transient ConcurrentHashMap<FileId, ChunkBitmap> storedChunksByFileId;
+    private transient ConcurrentHashMap<FileChunk, ChunkInfo> storedChunks;
+    private transient ConcurrentHashMap<FileChunk, ChunkInfo> storedChunks_ENH;
 
-    private ConcurrentHashMap<String, Set<Integer>> peersBackingUpFile;
-    private Set<String> deletedFiles;
+    private ConcurrentHashMap<FileId, Set<Integer>> peersBackingUpFile;
+    private Set<FileId> deletedFiles;
 
-    private ConcurrentHashMap<String, FileInfo> filesBeingRestored;
-    private ConcurrentHashMap<String, ConcurrentSkipListSet<Message>> restoredChunks;
-    private ConcurrentHashMap<FileChunk, Boolean> isBeingRestoredChunkMap;
+    private transient ConcurrentHashMap<FileId, FileInfo> filesBeingRestored;
+    private transient ConcurrentHashMap<FileId, ConcurrentSkipListSet<Message>> restoredChunks;
+    private transient ConcurrentHashMap<FileChunk, Boolean> isBeingRestoredChunkMap;
 
-    private ConcurrentHashMap<FileChunk, ChunkInfo> chunksReclaimed;
+    private transient ConcurrentHashMap<FileChunk, ChunkInfo> chunksReclaimed;
 
     private boolean isEnhanced;
 
+    private transient ConcurrentHashMap<FileChunk, CompletableFuture<Void>> replicationWaiters;
+    private transient StateShards shards;
+    private transient ReclaimIndex reclaimIndex;
+    private transient StateLog stateLog;
+    private transient volatile ChunkCatalog chunkCatalog;
+
     PeerState(String version, int serverId) {
         setVersion(version);
         this.serverId = serverId;
@@ -55,6 +69,184 @@ public class PeerState implements Serializable {
         chunksReclaimed = new ConcurrentHashMap<>();
         peersBackingUpFile = new ConcurrentHashMap<>();
         deletedFiles = ConcurrentHashMap.newKeySet();
+        replicationWaiters = new ConcurrentHashMap<>();
+        shards = new StateShards(Utils.STATE_SHARDS);
+        reclaimIndex = new ReclaimIndex();
+    }
+
+    /**
+     * Only the state that must survive a restart is saved: the chunks being restored or reclaimed and the enhanced
+     * STORED counters start empty. The stored chunks are saved apart, in the chunk catalogue of the snapshot.
+     */
+    private void readObject(ObjectInputStream stream) throws IOException, ClassNotFoundException {
+        stream.defaultReadObject();
+        storedChunksByFileId = new ConcurrentHashMap<>();
+        storedChunks = new ConcurrentHashMap<>();
+        storedChunks_ENH = new ConcurrentHashMap<>();
+        filesBeingRestored = new ConcurrentHashMap<>();
+        restoredChunks = new ConcurrentHashMap<>();
+        isBeingRestoredChunkMap = new ConcurrentHashMap<>();
+        chunksReclaimed = new ConcurrentHashMap<>();
+        replicationWaiters = new ConcurrentHashMap<>();
+        shards = new StateShards(Utils.STATE_SHARDS);
+        reclaimIndex = new ReclaimIndex();
+    }
+
+    /**
+     * Rebuilds what is derived from the stored chunks once the state is recovered: the reclaim index and the space
+     * used by the chunks.
+     */
+    void recover() {
+        reclaimIndex = new ReclaimIndex();
+        long usedSpace = 0;
+        for (Map.Entry<FileChunk, ChunkInfo> entry : storedChunks.entrySet()) {
+            FileChunk fileChunk = entry.getKey();
+            if (hasStoredChunk(fileChunk.getFileId(), fileChunk.getChunkNo())) {
+                reclaimIndex.update(fileChunk, entry.getValue());
+                usedSpace += entry.getValue().getSize();
+            }
+        }
+        storageManager.recoverUsedSpace(usedSpace);
+    }
+
+    /**
+     * Sets the chunk catalogue of the snapshot the state is being loaded from. Until the stored chunks containers are
+     * rebuilt from it, and the catalogue is unset, it answers whether chunks are stored.
+     * @param chunkCatalog - the chunk catalogue or null once the state is loaded
+     */
+    void setChunkCatalog(ChunkCatalog chunkCatalog) {
+        this.chunkCatalog = chunkCatalog;
+    }
+
+    ChunkCatalog getChunkCatalog() {
+        return chunkCatalog;
+    }
+
+    /**
+     * Puts a stored chunk, read from the chunk catalogue or from the state log, in the stored chunks containers.
+     * @param fileChunk - the file chunk
+     * @param isStored - true if the chunk was saved, false if it was still being saved
+     * @param chunkInfo - the chunk information
+     */
+    void restoreStoredChunk(FileChunk fileChunk, boolean isStored, ChunkInfo chunkInfo) {
+        storedChunks.put(fileChunk, chunkInfo);
+        ChunkBitmap chunkNos = storedChunksByFileId.computeIfAbsent(fileChunk.getFileId(), fileId -> new ChunkBitmap());
+        if (isStored) {
+            chunkNos.set(fileChunk.getChunkNo());
+        } else {
+            chunkNos.clear(fileChunk.getChunkNo());
+        }
+    }
+
+    /**
+     * Sets the log where every change to the state is recorded from now on.
+     * @param stateLog - the state log
+     */
+    void setStateLog(StateLog stateLog) {
+        this.stateLog = stateLog;
+    }
+
+    /**
+     * Waits for the changes made to the state so far to be durable in the state log.
+     *
+     * @return a future completed once they are logged and synced, right away if the state is not logged
+     */
+    public CompletableFuture<Void> awaitLogFlush() {
+        StateLog log = stateLog;
+        return log != null ? log.awaitFlush() : CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Applies a record of the state log. Records hold the new value of what changed, so applying one again has no
+     * effect.
+     * @param type - the record type
+     * @param in - the record fields
+     */
+    void replay(byte type, DataInputStream in) throws IOException {
+        switch (type) {
+            case StateLog.BACKED_UP_FILE: {
+                String filePath = in.readUTF();
+                backedUpFiles.put(filePath, StateLog.readFileInfo(in));
+                break;
+            }
+            case StateLog.BACKED_UP_FILE_REMOVED: {
+                String filePath = in.readUTF();
+                FileInfo fileInfo = StateLog.readFileInfo(in);
+                backedUpFiles.remove(filePath);
+                for (int i = 0; i < fileInfo.getNumberOfChunks(); i++) {
+                    backedUpChunks.remove(new FileChunk(fileInfo.getFileId(), i));
+                }
+                break;
+            }
+            case StateLog.BACKED_UP_CHUNK: {
+                FileChunk fileChunk = StateLog.readFileChunk(in);
+                backedUpChunks.put(fileChunk, StateLog.readChunkInfo(in));
+                break;
+            }
+            case StateLog.BACKED_UP_CHUNK_REMOVED:
+                backedUpChunks.remove(StateLog.readFileChunk(in));
+                break;
+            case StateLog.STORED_CHUNK: {
+                FileChunk fileChunk = StateLog.readFileChunk(in);
+                boolean isStored = in.readBoolean();
+                restoreStoredChunk(fileChunk, isStored, StateLog.readChunkInfo(in));
+                break;
+            }
+            case StateLog.STORED_CHUNK_REMOVED: {
+                FileChunk fileChunk = StateLog.readFileChunk(in);
+                storedChunks.remove(fileChunk);
+                ChunkBitmap chunkNos = storedChunksByFileId.get(fileChunk.getFileId());
+                if (chunkNos != null) {
+                    chunkNos.clear(fileChunk.getChunkNo());
+                    if (chunkNos.isEmpty()) {
+                        storedChunksByFileId.remove(fileChunk.getFileId());
+                    }
+                }
+                break;
+            }
+            case StateLog.STORED_FILE_REMOVED:
+                removeStoredFile(StateLog.readFileId(in));
+                break;
+            case StateLog.PEERS_BACKING_UP_FILE: {
+                FileId fileId = StateLog.readFileId(in);
+                Set<Integer> peers = ConcurrentHashMap.newKeySet();
+                int peerCount = in.readInt();
+                for (int i = 0; i < peerCount; i++) {
+                    peers.add(in.readInt());
+                }
+                peersBackingUpFile.put(fileId, peers);
+                break;
+            }
+            case StateLog.PEERS_BACKING_UP_FILE_REMOVED:
+                peersBackingUpFile.remove(StateLog.readFileId(in));
+                break;
+            case StateLog.DELETED_FILE:
+                deletedFiles.add(StateLog.readFileId(in));
+                break;
+            case StateLog.DELETED_FILE_REMOVED:
+                deletedFiles.remove(StateLog.readFileId(in));
+                break;
+            default:
+                throw new IOException("Unknown state log record " + type);
+        }
+    }
+
+    private void logBackedUpChunk(FileChunk fileChunk) {
+        if (stateLog != null) {
+            stateLog.logBackedUpChunk(fileChunk, backedUpChunks.get(fileChunk));
+        }
+    }
+
+    private void logStoredChunk(FileChunk fileChunk) {
+        if (stateLog != null) {
+            stateLog.logStoredChunk(fileChunk, isChunkStored(fileChunk), storedChunks.get(fileChunk));
+        }
+    }
+
+    private void logPeersBackingUpFile(FileId fileId) {
+        if (stateLog != null) {
+            stateLog.logPeersBackingUpFile(fileId, peersBackingUpFile.get(fileId));
+        }
     }
 
     void setVersion(String version){
@@ -68,8 +260,8 @@ public class PeerState implements Serializable {
      * @param chunk - the received chunk
      */
     public void listenForSTORED_ENH(Message chunk) {
-        FileChunk fileChunk = new FileChunk(chunk.getFileId(),chunk.getChunkNo());
-        storedChunks_ENH.putIfAbsent(fileChunk, new ChunkInfo(chunk.getReplicationDeg(), 0));
+        FileChunk fileChunk = chunk.getFileChunk();
+        storedChunks_ENH.putIfAbsent(fileChunk, new ChunkInfo(chunk.getReplicationDeg()));
     }
 
     /**
@@ -78,8 +270,10 @@ public class PeerState implements Serializable {
      * @param chunk - the received chunk
      */
     public void listenForSTORED(Message chunk) {
-        FileChunk fileChunk = new FileChunk(chunk.getFileId(),chunk.getChunkNo());
-        backedUpChunks.putIfAbsent(fileChunk, new ChunkInfo(chunk.getReplicationDeg(), 0));
+        FileChunk fileChunk = chunk.getFileChunk();
+        if(backedUpChunks.putIfAbsent(fileChunk, new ChunkInfo(chunk.getReplicationDeg())) == null) {
+            logBackedUpChunk(fileChunk);
+        }
     }
 
     /**
@@ -88,7 +282,7 @@ public class PeerState implements Serializable {
      * @param chunk - the received chunk
      */
     public void listenForCHUNK(Message chunk) {
-        FileChunk fileChunk = new FileChunk(chunk.getFileId(),chunk.getChunkNo());
+        FileChunk fileChunk = chunk.getFileChunk();
         isBeingRestoredChunkMap.putIfAbsent(fileChunk, false);
     }
 
@@ -97,29 +291,52 @@ public class PeerState implements Serializable {
      *
      * @param fileId - the file id
      */
-    public void addToRestoringFiles(String fileId, FileInfo fileInfo) {
+    public void addToRestoringFiles(FileId fileId, FileInfo fileInfo) {
         restoredChunks.putIfAbsent(fileId, new ConcurrentSkipListSet<>());
         filesBeingRestored.putIfAbsent(fileId, fileInfo);
     }
 
     /**
-     * Initializes the stored chunk maps (Backup initiator peer)
+     * Initializes the stored chunk maps, counting this peer as one of the peers backing up the chunk.
      * @param message - the PUTCHUNK message
      */
     public void startStoringChunks(Message message) {
-        storedChunksByFileId.putIfAbsent(message.getFileId(), new ArrayList<>());
-        FileChunk fileChunk = new FileChunk(message.getFileId(), message.getChunkNo());
-        storedChunks.putIfAbsent(fileChunk, new ChunkInfo(message.getReplicationDeg(), 1, message.getBody().length));
+        storedChunksByFileId.putIfAbsent(message.getFileId(), new ChunkBitmap());
+        FileChunk fileChunk = message.getFileChunk();
+        ChunkInfo chunkInfo = new ChunkInfo(message.getReplicationDeg(), message.getBodyLength());
+        chunkInfo.addPeer(serverId);
+        storedChunks.putIfAbsent(fileChunk, chunkInfo);
+        logStoredChunk(fileChunk);
     }
 
     /**
-     * Add chunk to the file list of stored chunks
+     * Add chunk to the file bitmap of stored chunks
      * @param message - the received chunk message
      */
     public void addStoredChunk(Message message) {
-        ArrayList<Integer> storedChunks = storedChunksByFileId.get(message.getFileId());
-        storedChunks.add(message.getChunkNo());
-        storedChunksByFileId.put(message.getFileId(), storedChunks);
+        storedChunksByFileId.get(message.getFileId()).set(message.getChunkNo());
+        FileChunk fileChunk = message.getFileChunk();
+        reclaimIndex.update(fileChunk, storedChunks.get(fileChunk));
+        logStoredChunk(fileChunk);
+    }
+
+    /**
+     * Checks if a chunk is stored locally. While the state is being loaded, the chunk catalogue of the snapshot is
+     * searched instead, and the chunk must still be in the storage, since it may have been deleted after the snapshot.
+     * @param fileChunk - the file chunk
+     * @return true if the chunk is stored or false if otherwise
+     */
+    public boolean isChunkStored(FileChunk fileChunk) {
+        ChunkCatalog chunkCatalog = this.chunkCatalog;
+        if (chunkCatalog != null) {
+            return chunkCatalog.isChunkStored(fileChunk.getFileId(), fileChunk.getChunkNo()) && storageManager.hasChunk(fileChunk);
+        }
+        return hasStoredChunk(fileChunk.getFileId(), fileChunk.getChunkNo());
+    }
+
+    private boolean hasStoredChunk(FileId fileId, int chunkNo) {
+        ChunkBitmap storedChunks = storedChunksByFileId.get(fileId);
+        return storedChunks != null && storedChunks.get(chunkNo);
     }
 
     /**
@@ -128,8 +345,11 @@ public class PeerState implements Serializable {
      * @param message - the received STORED message
      */
     public void updateBackedUpChunks(FileChunk fileChunk, Message message) {
-        updateContainer(backedUpChunks, fileChunk, message);
+        if(updateContainer(backedUpChunks, fileChunk, message)) {
+            logBackedUpChunk(fileChunk);
+        }
         addPeerBackingUpFile(fileChunk,message.getSenderId());
+        notifyReplication(backedUpChunks, fileChunk);
     }
 
     /**
@@ -140,7 +360,9 @@ public class PeerState implements Serializable {
     private void addPeerBackingUpFile(FileChunk fileChunk, int senderId) {
         if(peersBackingUpFile.containsKey(fileChunk.getFileId())){
             Set<Integer> peers = peersBackingUpFile.get(fileChunk.getFileId());
-            peers.add(senderId);
+            if(peers.add(senderId)) {
+                logPeersBackingUpFile(fileChunk.getFileId());
+            }
             peersBackingUpFile.put(fileChunk.getFileId(), peers);
         }
     }
@@ -151,7 +373,11 @@ public class PeerState implements Serializable {
      * @param message - the received STORED message
      */
     public void updateStoredChunks(FileChunk fileChunk, Message message) {
-        updateContainer(storedChunks, fileChunk, message);
+        if(updateContainer(storedChunks, fileChunk, message)) {
+            logStoredChunk(fileChunk);
+        }
+        notifyReplication(storedChunks, fileChunk);
+        updateReclaimIndex(fileChunk);
 
         if(isEnhanced) {
             updateContainer(storedChunks_ENH, fileChunk, message);
@@ -159,22 +385,109 @@ public class PeerState implements Serializable {
     }
 
     /**
-     * Updates map container at given key with the received STORED message
+     * Removes a peer that stopped backing up a chunk stored locally.
+     * @param fileChunk - the file chunk
+     * @param peerId - the id of the peer that removed the chunk
+     * @return the chunk information or null if the chunk is not stored
+     */
+    public ChunkInfo removeStoredChunkPeer(FileChunk fileChunk, int peerId) {
+        ChunkInfo chunkInfo = storedChunks.get(fileChunk);
+        if(chunkInfo != null && chunkInfo.removePeer(peerId)) {
+            updateReclaimIndex(fileChunk);
+            logStoredChunk(fileChunk);
+        }
+        return chunkInfo;
+    }
+
+    /**
+     * Removes a peer that stopped backing up a chunk of a file backed up by this peer.
+     * @param fileChunk - the file chunk
+     * @param peerId - the id of the peer that removed the chunk
+     */
+    public void removeBackedUpChunkPeer(FileChunk fileChunk, int peerId) {
+        ChunkInfo chunkInfo = backedUpChunks.get(fileChunk);
+        if(chunkInfo != null && chunkInfo.removePeer(peerId)) {
+            logBackedUpChunk(fileChunk);
+        }
+    }
+
+    /**
+     * Repositions a stored chunk in the reclaim index after its replication degree changed.
+     * @param fileChunk - the file chunk
+     */
+    private void updateReclaimIndex(FileChunk fileChunk) {
+        ChunkInfo chunkInfo = storedChunks.get(fileChunk);
+        if(chunkInfo != null && isChunkStored(fileChunk)) {
+            reclaimIndex.update(fileChunk, chunkInfo);
+        }
+    }
+
+    /**
+     * Updates map container at given key with the received STORED message. A repeated STORED from the same peer does
+     * not change the replication degree.
      * @param map - The map container
      * @param fileChunk - The chunk
      * @param message - The STORED message
+     * @return true if the sender was added to the chunk
      */
-    private void updateContainer(ConcurrentHashMap<FileChunk, ChunkInfo> map, FileChunk fileChunk, Message message) {
-        ChunkInfo chunkInfo;
-        if(map.containsKey(fileChunk) && !map.get(fileChunk).isBackedUpByPeer(message.getSenderId())) {
-            chunkInfo = map.get(fileChunk);
-            chunkInfo.increaseCurrentRepDeg();
-            chunkInfo.addPeer(message.getSenderId());
-            map.put(fileChunk, chunkInfo);
+    private boolean updateContainer(ConcurrentHashMap<FileChunk, ChunkInfo> map, FileChunk fileChunk, Message message) {
+        ChunkInfo chunkInfo = map.get(fileChunk);
+        if(chunkInfo != null && chunkInfo.addPeer(message.getSenderId())) {
             UI.printOK("Updated with received STORED message");
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns a future that completes once the chunk reaches the replication degree of the message, either in the
+     * backed up chunks (backup initiator peer) or in the stored chunks (peer re-replicating one of its chunks).
+     * Completes right away if the degree was already reached.
+     * @param chunk - the PUTCHUNK message
+     * @return the future
+     */
+    public CompletableFuture<Void> awaitReplication(Message chunk) {
+        FileChunk fileChunk = chunk.getFileChunk();
+        CompletableFuture<Void> future = replicationWaiters.computeIfAbsent(fileChunk, key -> new CompletableFuture<>());
+
+        if(getReplicationDeg(backedUpChunks, fileChunk) >= chunk.getReplicationDeg()
+                || getReplicationDeg(storedChunks, fileChunk) >= chunk.getReplicationDeg()) {
+            replicationWaiters.remove(fileChunk, future);
+            future.complete(null);
+        }
+        return future;
+    }
+
+    /**
+     * Stops waiting for the replication of a chunk, if the backup was aborted.
+     * @param chunk - the PUTCHUNK message
+     */
+    public void stopAwaitingReplication(Message chunk) {
+        replicationWaiters.remove(chunk.getFileChunk());
+    }
+
+    /**
+     * Completes the replication waiter of the chunk if the container reached its desired replication degree.
+     * @param map - The map container that was updated
+     * @param fileChunk - The chunk
+     */
+    private void notifyReplication(ConcurrentHashMap<FileChunk, ChunkInfo> map, FileChunk fileChunk) {
+        ChunkInfo chunkInfo = map.get(fileChunk);
+        if(chunkInfo == null || !chunkInfo.achievedDesiredRepDeg()) {
+            return;
+        }
+
+        CompletableFuture<Void> future = replicationWaiters.remove(fileChunk);
+        if(future != null) {
+            future.complete(null);
         }
     }
 
+    private int getReplicationDeg(ConcurrentHashMap<FileChunk, ChunkInfo> map, FileChunk fileChunk) {
+        ChunkInfo chunkInfo = map.get(fileChunk);
+        return chunkInfo == null ? 0 : chunkInfo.getCurrentReplicationDeg();
+    }
+
     /**
      * Marks the received CHUNK message as being restored.
      * @param fileChunk - the received Chunk
@@ -184,13 +497,17 @@ public class PeerState implements Serializable {
     }
 
     /**
-     * Adds the chunk to the list of chunks being restored by the message file id
+     * Adds the chunk to the list of chunks being restored by the message file id.
+     * The message is retained until the file stops being restored.
      * @param message - the message
      */
     public void addRestoredFileChunks(Message message) {
-        String fileId = message.getFileId();
+        FileId fileId = message.getFileId();
         ConcurrentSkipListSet<Message> chunks = restoredChunks.get(fileId);
-        chunks.add(message);
+        message.retain();
+        if(!chunks.add(message)) {
+            message.release();
+        }
         restoredChunks.put(fileId, chunks);
     }
 
@@ -199,7 +516,7 @@ public class PeerState implements Serializable {
      * @param fileId - the provided file id
      * @return true if the chunks were all restored or false if otherwise
      */
-    public boolean hasRestoredAllChunks(String fileId){
+    public boolean hasRestoredAllChunks(FileId fileId){
         int currentSize = restoredChunks.get(fileId).size();
         int desiredSize = filesBeingRestored.get(fileId).getNumberOfChunks();
 
@@ -207,22 +524,29 @@ public class PeerState implements Serializable {
     }
 
     /**
-     * Saves the restored file in the restored peer folder
+     * Saves the restored file in the restored peer folder and removes it from the containers responsible for restoring
+     * files at once, so that late CHUNK messages do not save it again. The file is written on the storage I/O thread,
+     * after which its chunks are released.
      * @param fileId - the id of the file to be saved
+     * @return a future completed when the file is written
      */
-    public void saveFileToRestoredFolder(String fileId) {
+    public CompletableFuture<Void> saveFileToRestoredFolder(FileId fileId) {
         String filePath = filesBeingRestored.get(fileId).getFilePath();
-        ConcurrentSkipListSet<Message> chunks = restoredChunks.get(fileId);
-        storageManager.saveFile(filePath, chunks);
+        ConcurrentSkipListSet<Message> chunks = restoredChunks.remove(fileId);
+        filesBeingRestored.remove(fileId);
+        return storageManager.saveFile(filePath, chunks).whenComplete((ignored, error) -> chunks.forEach(Message::release));
     }
 
     /**
      * Removes the file from the containers responsible for restoring files.
      * @param fileId - the id of the file to be removed
      */
-    public void stopRestoringFile(String fileId) {
-        restoredChunks.remove(fileId);
+    public void stopRestoringFile(FileId fileId) {
+        ConcurrentSkipListSet<Message> chunks = restoredChunks.remove(fileId);
         filesBeingRestored.remove(fileId);
+        if(chunks != null) {
+            chunks.forEach(Message::release);
+        }
     }
 
     /**
@@ -234,49 +558,113 @@ public class PeerState implements Serializable {
     }
 
     /**
-     * Deletes a chunk that was saved locally.
-     * @param fileId - the file id where the chunk belongs
-     * @param chunkNo - the chunk number
-     * @param isReclaiming - boolean to specify if the delete was done by a reclaim service
+     * Deletes a chunk that was saved locally, on behalf of the reclaim service.
+     * The chunk is only scheduled for deletion, to be deleted with the rest of the reclaim batch. If it will have to be
+     * backed up again, because its replication degree drops below the desired one, only its metadata is kept and its
+     * deletion is held: its body is read when its own REMOVED message is handled.
+     * @param fileChunk - the file chunk
+     * @return true if the chunk was stored and got deleted or false if otherwise
      */
-    public void deleteChunk(String fileId, int chunkNo, boolean isReclaiming) {
-        Message chunkBeingDeleted = storageManager.loadChunk(fileId,chunkNo);
-        storageManager.deleteChunk(fileId, chunkNo);
+    public boolean deleteChunk(FileChunk fileChunk) {
+        if(!isChunkStored(fileChunk)) {
+            return false;
+        }
 
-        FileChunk fileChunk = new FileChunk(fileId, chunkNo);
+        FileId fileId = fileChunk.getFileId();
+        int chunkNo = fileChunk.getChunkNo();
         ChunkInfo chunkInfo = deleteStoredChunk(storedChunks,fileChunk);
+        reclaimIndex.remove(fileChunk);
+        if(!chunkInfo.achievedDesiredRepDeg()){
+            storageManager.holdChunkDeletion(fileChunk);
+            chunksReclaimed.putIfAbsent(fileChunk, chunkInfo);
+        }
+        storageManager.scheduleChunkDeletion(fileChunk, chunkInfo.getSize());
 
         if(isEnhanced && storedChunks_ENH.containsKey(fileChunk)){
             deleteStoredChunk(storedChunks_ENH, fileChunk);
         }
 
-        ArrayList<Integer> storedChunks = storedChunksByFileId.get(fileId);
-        storedChunks.remove((Integer) chunkNo);
+        ChunkBitmap storedChunks = storedChunksByFileId.get(fileId);
+        storedChunks.clear(chunkNo);
         if(storedChunks.isEmpty()) {
             storedChunksByFileId.remove(fileId);
-            storageManager.deleteFileFolder(fileId);
         }
+        if(stateLog != null) {
+            stateLog.logStoredChunk(fileChunk, false, null);
+        }
+        return true;
+    }
+
+    /**
+     * Deletes every chunk of a file that was saved locally, at once. The metadata of the file is dropped in a single
+     * step and its chunks are deleted in the background, without being read.
+     * @param fileId - the file id
+     * @return true if chunks of the file were stored or false if otherwise
+     */
+    public boolean deleteFile(FileId fileId) {
+        long size = removeStoredFile(fileId);
+        if(size < 0) {
+            return false;
+        }
+
+        if(stateLog != null) {
+            stateLog.logStoredFileRemoved(fileId);
+        }
+        storageManager.deleteFile(fileId, size);
+        return true;
+    }
 
-        if(isReclaiming && !chunkInfo.achievedDesiredRepDeg()){
-            chunkInfo.setBody(chunkBeingDeleted.getBody());
-            chunksReclaimed.putIfAbsent(fileChunk,chunkInfo);
+    /**
+     * Drops the metadata of every chunk of a file that was saved locally.
+     * @param fileId - the file id
+     * @return the size of the chunks or -1 if no chunks of the file were stored
+     */
+    private long removeStoredFile(FileId fileId) {
+        ChunkBitmap storedChunkNos = storedChunksByFileId.remove(fileId);
+        if(storedChunkNos == null) {
+            return -1;
+        }
+
+        long size = 0;
+        for(int chunkNo = storedChunkNos.nextSetBit(0); chunkNo >= 0; chunkNo = storedChunkNos.nextSetBit(chunkNo + 1)) {
+            FileChunk fileChunk = new FileChunk(fileId, chunkNo);
+            ChunkInfo chunkInfo = storedChunks.remove(fileChunk);
+            storedChunks_ENH.remove(fileChunk);
+            reclaimIndex.remove(fileChunk);
+            if(chunkInfo != null) {
+                size += chunkInfo.getSize();
+            }
         }
+        return size;
+    }
+
+    /**
+     * Plans a reclaim: takes from the reclaim index the best chunks to be removed until they add up to the space to be
+     * freed. Only chunks whose replication degree is at least the desired one are taken.
+     * @param space - the space to be freed
+     * @return the chunks to be removed
+     */
+    public ArrayList<FileChunk> planReclaim(long space) {
+        return reclaimIndex.pollVictims(space);
     }
 
     private ChunkInfo deleteStoredChunk(ConcurrentHashMap<FileChunk, ChunkInfo> storedChunks, FileChunk fileChunk) {
         ChunkInfo chunkInfo = storedChunks.remove(fileChunk);
         chunkInfo.removePeer(serverId);
-        chunkInfo.decreaseCurrentRepDeg();
         return chunkInfo;
     }
 
-    public void removePeerBackingUpFile(String fileId, Integer senderId) {
+    public void removePeerBackingUpFile(FileId fileId, Integer senderId) {
         Set<Integer> peers = peersBackingUpFile.get(fileId);
         peers.remove(senderId);
         if(peers.isEmpty()){
             peersBackingUpFile.remove(fileId);
             deletedFiles.remove(fileId);
+            if(stateLog != null) {
+                stateLog.logDeletedFile(fileId, false);
+            }
         }
+        logPeersBackingUpFile(fileId);
     }
 
     public void removeStoredChunk_ENH(FileChunk fileChunk) {
@@ -287,6 +675,16 @@ public class PeerState implements Serializable {
         chunksReclaimed.remove(fileChunk);
     }
 
+    /**
+     * Retrieves the shards partitioning this state by file. The containers of a file must only be updated from the
+     * shard of that file.
+     *
+     * @return the state shards
+     */
+    public StateShards getShards() {
+        return shards;
+    }
+
     public StorageManager getStorageManager() {
         return storageManager;
     }
@@ -299,7 +697,7 @@ public class PeerState implements Serializable {
         return serverId;
     }
 
-    public ConcurrentHashMap<String, ArrayList<Integer>> getStoredChunksByFileId() {
+    public ConcurrentHashMap<FileId, ChunkBitmap> getStoredChunksByFileId() {
         return storedChunksByFileId;
     }
 
@@ -315,7 +713,7 @@ public class PeerState implements Serializable {
         return storedChunks_ENH;
     }
 
-    public ConcurrentHashMap<String, ConcurrentSkipListSet<Message>> getRestoredChunks() {
+    public ConcurrentHashMap<FileId, ConcurrentSkipListSet<Message>> getRestoredChunks() {
         return restoredChunks;
     }
 
@@ -327,11 +725,11 @@ public class PeerState implements Serializable {
         return chunksReclaimed;
     }
 
-    public ConcurrentHashMap<String, Set<Integer>> getPeersBackingUpFile() {
+    public ConcurrentHashMap<FileId, Set<Integer>> getPeersBackingUpFile() {
         return peersBackingUpFile;
     }
 
-    public Set<String> getDeletedFiles() {
+    public Set<FileId> getDeletedFiles() {
         return deletedFiles;
     }
 
@@ -346,7 +744,7 @@ public class PeerState implements Serializable {
      */
     public int getChunkRepDeg(Message message) {
         int currentDegree = 0;
-        FileChunk fileChunk = new FileChunk(message.getFileId(),message.getChunkNo());
+        FileChunk fileChunk = message.getFileChunk();
         if(backedUpChunks.containsKey(fileChunk)) {
             currentDegree = backedUpChunks.get(fileChunk).getCurrentReplicationDeg();
         }
@@ -354,8 +752,10 @@ public class PeerState implements Serializable {
         return currentDegree;
     }
 
-    public void initPeersWithFile(String fileId) {
-        peersBackingUpFile.putIfAbsent(fileId, new HashSet<>());
+    public void initPeersWithFile(FileId fileId) {
+        if(peersBackingUpFile.putIfAbsent(fileId, ConcurrentHashMap.newKeySet()) == null) {
+            logPeersBackingUpFile(fileId);
+        }
     }
 
     /**
@@ -364,31 +764,12 @@ public class PeerState implements Serializable {
      * @param fileId - the id of the file
      * @param numberOfChunks - the number of chunks
      */
-    public void backUpFile(String filePath, String fileId, int numberOfChunks) {
-        backedUpFiles.put(filePath, new FileInfo(fileId, numberOfChunks, filePath));
-    }
-
-    /**
-     * Computes the best chunk for being removed.
-     * @return the computed chunk
-     */
-    public FileChunk getMostStoredChunk() {
-        if(storedChunks.isEmpty()) {
-            UI.printWarning("Stored chunks info is empty");
-            UI.print("Size: " + storedChunks.size());
-            return null;
+    public void backUpFile(String filePath, FileId fileId, int numberOfChunks) {
+        FileInfo fileInfo = new FileInfo(fileId, numberOfChunks, filePath);
+        backedUpFiles.put(filePath, fileInfo);
+        if(stateLog != null) {
+            stateLog.logBackedUpFile(filePath, fileInfo);
         }
-
-        FileChunk bestChunk = null;
-        int max = -1;
-
-        for (Map.Entry<FileChunk, ChunkInfo> chunk : storedChunks.entrySet()) {
-            if(chunk.getValue().getReplicationDegDifference() > max){
-                max = chunk.getValue().getReplicationDegDifference();
-                bestChunk = chunk.getKey();
-            }
-        }
-        return bestChunk;
     }
 
     /**
@@ -401,8 +782,14 @@ public class PeerState implements Serializable {
             FileChunk fileChunk = new FileChunk(fileInfo.getFileId(), i);
             backedUpChunks.remove(fileChunk);
         }
+        if(stateLog != null) {
+            stateLog.logBackedUpFileRemoved(filePath, fileInfo);
+        }
         if(!version.equals("1.0")) {
             deletedFiles.add(fileInfo.getFileId());
+            if(stateLog != null) {
+                stateLog.logDeletedFile(fileInfo.getFileId(), true);
+            }
         }
     }
 
@@ -429,21 +816,25 @@ public class PeerState implements Serializable {
         }
 
         output += "\nChunks stored:";
-        for (Map.Entry<String, ArrayList<Integer>> entry : storedChunksByFileId.entrySet()) {
+        for (Map.Entry<FileId, ChunkBitmap> entry : storedChunksByFileId.entrySet()) {
             output += "\n  FileId: " + entry.getKey();
-            Collections.sort(entry.getValue());
-            for(int chunkNo : entry.getValue()){
+            ChunkBitmap chunkNos = entry.getValue();
+            for(int chunkNo = chunkNos.nextSetBit(0); chunkNo >= 0; chunkNo = chunkNos.nextSetBit(chunkNo + 1)){
                 ChunkInfo chunkInfo = storedChunks.get(new FileChunk(entry.getKey(), chunkNo));
                 output += "\n     Chunk No " + chunkNo + " (" + chunkInfo.getSize()/1000 +" kB) - Current replication degree: " + chunkInfo.getCurrentReplicationDeg();
             }
         }
 
-        output += "\nStorage: \n  Available Memory(kB): "+ storageManager.getAvailableSpace()/1000 + "\n  Used Memory(kB): " + storageManager.getUsedSpace()/1000;
+        output += "\nStorage: \n  Available Memory(kB): "+ storageManager.getAvailableSpace()/1000 + "\n  Used Memory(kB): " + storageManager.getUsedSpace()/1000 + "\n  Reserved Memory(kB): " + storageManager.getReservedSpace()/1000;
+        ChunkCache chunkCache = storageManager.getChunkCache();
+        output += "\nChunk cache: \n  Used Memory(kB): " + chunkCache.getUsedBytes()/1000 + " of " + chunkCache.getCapacity()/1000 + "\n  Hits: " + chunkCache.getHits() + "\n  Misses: " + chunkCache.getMisses() + "\n  Evictions: " + chunkCache.getEvictions();
         return output;
     }
 
     public void removeBackedUpContainer(Message message) {
-        FileChunk fileChunk = new FileChunk(message.getFileId(),message.getChunkNo());
-        backedUpChunks.remove(fileChunk);
+        FileChunk fileChunk = message.getFileChunk();
+        if(backedUpChunks.remove(fileChunk) != null) {
+            logBackedUpChunk(fileChunk);
+        }
     }
 }
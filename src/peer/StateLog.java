@@ -0,0 +1,556 @@
+package peer;
+
+import storage.ChunkInfo;
+import storage.FileChunk;
+import storage.FileId;
+import storage.FileInfo;
+import user_interface.UI;
+import utils.Utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.CRC32;
+
+public class StateLog {
+
+    static final byte BACKED_UP_FILE = 1;
+    static final byte BACKED_UP_FILE_REMOVED = 2;
+    static final byte BACKED_UP_CHUNK = 3;
+    static final byte BACKED_UP_CHUNK_REMOVED = 4;
+    static final byte STORED_CHUNK = 5;
+    static final byte STORED_CHUNK_REMOVED = 6;
+    static final byte STORED_FILE_REMOVED = 7;
+    static final byte PEERS_BACKING_UP_FILE = 8;
+    static final byte PEERS_BACKING_UP_FILE_REMOVED = 9;
+    static final byte DELETED_FILE = 10;
+    static final byte DELETED_FILE_REMOVED = 11;
+
+    private static final String LOG_PREFIX = "log-";
+    private static final String SNAPSHOT = "snapshot";
+    private static final String SNAPSHOT_TMP = "snapshot.tmp";
+    private static final int MAX_RECORD_SIZE = 1 << 20;
+    private static final int SNAPSHOT_MAGIC = 0x50534E50;
+    private static final int SNAPSHOT_HEADER_SIZE = Integer.BYTES + Long.BYTES;
+
+    private Path directory;
+    private ByteArrayOutputStream pendingRecords = new ByteArrayOutputStream();
+    private DataOutputStream pendingOut = new DataOutputStream(pendingRecords);
+    private long appendedRecords = 0;
+    private long flushedRecords = 0;
+    private ArrayDeque<FlushWaiter> flushWaiters = new ArrayDeque<>();
+    private IOException failure = null;
+
+    private final Object flushLock = new Object();
+    private FileChannel channel;
+    private long generation = 0;
+    private long snapshotGeneration = 0;
+    private long logSize = 0;
+    private long lastSnapshotTime = System.currentTimeMillis();
+
+    /**
+     * Creates the write-ahead log of the peer state, kept in peers/peerN/state.
+     * Every change to the persistent state appends a record with the new value of what changed, or with its removal,
+     * so records are idempotent and are replayed in order on top of the last snapshot. Records are buffered and
+     * appended to the log, with a single sync, every STATE_LOG_FLUSH_INTERVAL; replies that promise a change survives,
+     * like STORED, wait for the flush that covers its record. Snapshots of the whole state are taken
+     * once enough records were logged, while the state keeps changing: the log moves to a new generation first, so the
+     * records of the changes missed by a snapshot are always replayed.
+     *
+     * @param serverId - the peer id
+     */
+    StateLog(int serverId) {
+        directory = Paths.get("peers/peer" + serverId + "/state");
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Loads the last snapshot. Its chunk catalogue is memory mapped and set in the peer state, but not read: the stored
+     * chunks containers are rebuilt from it later, so that loading takes the same time whatever the number of chunks.
+     *
+     * @return the peer state or null if there is no snapshot
+     */
+    PeerState loadSnapshot() {
+        try (FileChannel channel = FileChannel.open(directory.resolve(SNAPSHOT), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(SNAPSHOT_HEADER_SIZE + ChunkCatalog.HEADER_SIZE);
+            while (header.hasRemaining()) {
+                if (channel.read(header) == -1) {
+                    throw new EOFException("Truncated snapshot");
+                }
+            }
+            header.flip();
+            if (header.getInt() != SNAPSHOT_MAGIC) {
+                UI.printError("Unknown peer state snapshot format");
+                return null;
+            }
+
+            snapshotGeneration = header.getLong();
+            long catalogSize = ChunkCatalog.getSize(header.getInt(), header.getInt());
+            if (catalogSize > Integer.MAX_VALUE) {
+                throw new IOException("Chunk catalogue too large to be mapped (" + catalogSize + " bytes)");
+            }
+            MappedByteBuffer catalog = channel.map(FileChannel.MapMode.READ_ONLY, SNAPSHOT_HEADER_SIZE, catalogSize);
+
+            channel.position(SNAPSHOT_HEADER_SIZE + catalogSize);
+            ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            PeerState peerState = (PeerState) in.readObject();
+            peerState.setChunkCatalog(new ChunkCatalog(catalog));
+            return peerState;
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | ClassNotFoundException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Replays, in order, the records of every log generation since the snapshot. A record torn by a crash ends the
+     * replay of its generation.
+     *
+     * @param peerState - the peer state loaded from the snapshot
+     * @return the number of records replayed
+     */
+    int replay(PeerState peerState) {
+        int records = 0;
+        for (long logGeneration : getLogGenerations()) {
+            generation = Math.max(generation, logGeneration);
+            if (logGeneration < snapshotGeneration) {
+                continue;
+            }
+
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(getLogPath(logGeneration))))) {
+                byte[] record;
+                while ((record = readRecord(in)) != null) {
+                    DataInputStream recordIn = new DataInputStream(new ByteArrayInputStream(record));
+                    peerState.replay(recordIn.readByte(), recordIn);
+                    records++;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return records;
+    }
+
+    private static byte[] readRecord(DataInputStream in) throws IOException {
+        try {
+            int length = in.readInt();
+            int expectedCrc = in.readInt();
+            if (length <= 0 || length > MAX_RECORD_SIZE) {
+                return null;
+            }
+
+            byte[] record = new byte[length];
+            in.readFully(record);
+            CRC32 crc = new CRC32();
+            crc.update(record);
+            return (int) crc.getValue() == expectedCrc ? record : null;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Starts a new log generation for the records of this run, after the ones replayed.
+     */
+    void open() throws IOException {
+        synchronized (flushLock) {
+            generation = Math.max(generation, snapshotGeneration) + 1;
+            channel = openLog(generation);
+        }
+    }
+
+    private FileChannel openLog(long logGeneration) throws IOException {
+        return FileChannel.open(getLogPath(logGeneration), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private Path getLogPath(long logGeneration) {
+        return directory.resolve(LOG_PREFIX + logGeneration);
+    }
+
+    private ArrayList<Long> getLogGenerations() {
+        ArrayList<Long> generations = new ArrayList<>();
+        try (DirectoryStream<Path> logs = Files.newDirectoryStream(directory, LOG_PREFIX + "*")) {
+            for (Path log : logs) {
+                generations.add(Long.parseLong(log.getFileName().toString().substring(LOG_PREFIX.length())));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        Collections.sort(generations);
+        return generations;
+    }
+
+    void logBackedUpFile(String filePath, FileInfo fileInfo) {
+        append(BACKED_UP_FILE, out -> {
+            out.writeUTF(filePath);
+            writeFileInfo(out, fileInfo);
+        });
+    }
+
+    void logBackedUpFileRemoved(String filePath, FileInfo fileInfo) {
+        append(BACKED_UP_FILE_REMOVED, out -> {
+            out.writeUTF(filePath);
+            writeFileInfo(out, fileInfo);
+        });
+    }
+
+    void logBackedUpChunk(FileChunk fileChunk, ChunkInfo chunkInfo) {
+        if (chunkInfo == null) {
+            append(BACKED_UP_CHUNK_REMOVED, out -> writeFileChunk(out, fileChunk));
+            return;
+        }
+        append(BACKED_UP_CHUNK, out -> {
+            writeFileChunk(out, fileChunk);
+            writeChunkInfo(out, chunkInfo);
+        });
+    }
+
+    void logStoredChunk(FileChunk fileChunk, boolean isStored, ChunkInfo chunkInfo) {
+        if (chunkInfo == null) {
+            append(STORED_CHUNK_REMOVED, out -> writeFileChunk(out, fileChunk));
+            return;
+        }
+        append(STORED_CHUNK, out -> {
+            writeFileChunk(out, fileChunk);
+            out.writeBoolean(isStored);
+            writeChunkInfo(out, chunkInfo);
+        });
+    }
+
+    void logStoredFileRemoved(FileId fileId) {
+        append(STORED_FILE_REMOVED, out -> out.writeUTF(fileId.toString()));
+    }
+
+    void logPeersBackingUpFile(FileId fileId, Set<Integer> peers) {
+        if (peers == null) {
+            append(PEERS_BACKING_UP_FILE_REMOVED, out -> out.writeUTF(fileId.toString()));
+            return;
+        }
+        append(PEERS_BACKING_UP_FILE, out -> {
+            out.writeUTF(fileId.toString());
+            Integer[] peerIds = peers.toArray(new Integer[0]);
+            out.writeInt(peerIds.length);
+            for (int peerId : peerIds) {
+                out.writeInt(peerId);
+            }
+        });
+    }
+
+    void logDeletedFile(FileId fileId, boolean isDeleted) {
+        append(isDeleted ? DELETED_FILE : DELETED_FILE_REMOVED, out -> out.writeUTF(fileId.toString()));
+    }
+
+    /**
+     * Encodes a record and buffers it until the next flush.
+     *
+     * @param type - the record type
+     * @param writer - writes the record fields
+     */
+    private void append(byte type, RecordWriter writer) {
+        try {
+            ByteArrayOutputStream record = new ByteArrayOutputStream(128);
+            DataOutputStream out = new DataOutputStream(record);
+            out.writeByte(type);
+            writer.write(out);
+
+            byte[] bytes = record.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            synchronized (this) {
+                if (failure != null) {
+                    return;
+                }
+                pendingOut.writeInt(bytes.length);
+                pendingOut.writeInt((int) crc.getValue());
+                pendingOut.write(bytes);
+                appendedRecords++;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Waits for every record appended so far to be durable.
+     *
+     * @return a future completed once the flush that covers the records appended so far synced them, or completed
+     * exceptionally if the log failed
+     */
+    CompletableFuture<Void> awaitFlush() {
+        synchronized (this) {
+            if (failure != null) {
+                return CompletableFuture.failedFuture(failure);
+            }
+            if (flushedRecords >= appendedRecords) {
+                return CompletableFuture.completedFuture(null);
+            }
+            FlushWaiter waiter = new FlushWaiter(appendedRecords);
+            flushWaiters.add(waiter);
+            return waiter.future;
+        }
+    }
+
+    /**
+     * Appends the buffered records to the log and syncs it, once for all of them, then completes the waiters of the
+     * records it covers.
+     * If the write or the sync fails, the log is truncated back to where the records started, so no torn record is
+     * left before later ones, and the records are put back ahead of the buffered ones, to be written again by the next
+     * flush. Their waiters keep waiting. If the log cannot be truncated, it is marked failed: nothing is logged any
+     * more and every waiter fails, since no later record could be replayed past the torn one.
+     */
+    void flush() {
+        synchronized (flushLock) {
+            if (failure != null) {
+                return;
+            }
+
+            byte[] records;
+            long lastRecord;
+            synchronized (this) {
+                if (pendingRecords.size() == 0) {
+                    return;
+                }
+                records = pendingRecords.toByteArray();
+                lastRecord = appendedRecords;
+                pendingRecords.reset();
+            }
+
+            long position = -1;
+            try {
+                position = channel.size();
+                ByteBuffer buffer = ByteBuffer.wrap(records);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+                logSize += records.length;
+            } catch (IOException e) {
+                e.printStackTrace();
+                requeue(records, position);
+                return;
+            }
+
+            ArrayList<FlushWaiter> covered = new ArrayList<>();
+            synchronized (this) {
+                flushedRecords = lastRecord;
+                while (!flushWaiters.isEmpty() && flushWaiters.peek().lastRecord <= lastRecord) {
+                    covered.add(flushWaiters.poll());
+                }
+            }
+            for (FlushWaiter waiter : covered) {
+                waiter.future.complete(null);
+            }
+        }
+    }
+
+    /**
+     * Undoes a failed flush: truncates the log back to where its records started and puts them back ahead of the
+     * records buffered meanwhile. Marks the log failed if it cannot be truncated.
+     *
+     * @param records - the records of the failed flush
+     * @param position - the log size before the flush, or -1 if unknown
+     */
+    private void requeue(byte[] records, long position) {
+        try {
+            if (position < 0) {
+                throw new IOException("Unknown state log size");
+            }
+            channel.truncate(position);
+        } catch (IOException e) {
+            e.printStackTrace();
+            fail(e);
+            return;
+        }
+
+        synchronized (this) {
+            byte[] newerRecords = pendingRecords.toByteArray();
+            pendingRecords.reset();
+            pendingRecords.write(records, 0, records.length);
+            pendingRecords.write(newerRecords, 0, newerRecords.length);
+        }
+    }
+
+    /**
+     * Marks the log failed and fails every waiter.
+     *
+     * @param error - the cause
+     */
+    private void fail(IOException error) {
+        ArrayList<FlushWaiter> waiters;
+        synchronized (this) {
+            failure = error;
+            pendingRecords.reset();
+            waiters = new ArrayList<>(flushWaiters);
+            flushWaiters.clear();
+        }
+        UI.printError("State log failed, changes are no longer logged");
+        for (FlushWaiter waiter : waiters) {
+            waiter.future.completeExceptionally(error);
+        }
+    }
+
+    /**
+     * @return true if enough records were logged since the last snapshot, or if they were logged long enough ago
+     */
+    boolean shouldSnapshot() {
+        synchronized (flushLock) {
+            return logSize >= Utils.SNAPSHOT_LOG_SIZE
+                    || (logSize > 0 && System.currentTimeMillis() - lastSnapshotTime >= Utils.SNAPSHOT_INTERVAL);
+        }
+    }
+
+    /**
+     * Takes a snapshot of the peer state without stopping it. The log moves to a new generation first, so every change
+     * the snapshot may miss is logged in a generation that is replayed on top of it. The snapshot is written to a
+     * temporary file, synced and renamed over the previous one, so a crash never leaves a partial snapshot. The log
+     * generations it covers are deleted afterwards.
+     * The stored chunks are written as a chunk catalogue of fixed size records, ahead of the rest of the state, which is
+     * serialized.
+     *
+     * @param peerState - the peer state
+     */
+    void snapshot(PeerState peerState) {
+        long newSnapshotGeneration;
+        synchronized (flushLock) {
+            flush();
+            try {
+                channel.close();
+                channel = openLog(generation + 1);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+            newSnapshotGeneration = ++generation;
+            logSize = 0;
+            lastSnapshotTime = System.currentTimeMillis();
+        }
+
+        Path snapshotTmp = directory.resolve(SNAPSHOT_TMP);
+        try (FileOutputStream fileOut = new FileOutputStream(snapshotTmp.toFile())) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 1 << 16));
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(newSnapshotGeneration);
+            ChunkCatalog.write(out, peerState);
+
+            ObjectOutputStream objectOut = new ObjectOutputStream(out);
+            objectOut.writeObject(peerState);
+            objectOut.flush();
+            fileOut.getFD().sync();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        try {
+            Files.move(snapshotTmp, directory.resolve(SNAPSHOT), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            try (FileChannel directoryChannel = FileChannel.open(directory, StandardOpenOption.READ)) {
+                directoryChannel.force(true);
+            }
+            snapshotGeneration = newSnapshotGeneration;
+
+            for (long logGeneration : getLogGenerations()) {
+                if (logGeneration < newSnapshotGeneration) {
+                    Files.deleteIfExists(getLogPath(logGeneration));
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        UI.printOK("Saved peer state snapshot " + newSnapshotGeneration);
+    }
+
+    private static void writeFileInfo(DataOutputStream out, FileInfo fileInfo) throws IOException {
+        out.writeUTF(fileInfo.getFileId().toString());
+        out.writeInt(fileInfo.getNumberOfChunks());
+        out.writeUTF(fileInfo.getFilePath());
+    }
+
+    static FileInfo readFileInfo(DataInputStream in) throws IOException {
+        FileId fileId = readFileId(in);
+        int numberOfChunks = in.readInt();
+        return new FileInfo(fileId, numberOfChunks, in.readUTF());
+    }
+
+    private static void writeFileChunk(DataOutputStream out, FileChunk fileChunk) throws IOException {
+        out.writeUTF(fileChunk.getFileId().toString());
+        out.writeInt(fileChunk.getChunkNo());
+    }
+
+    static FileChunk readFileChunk(DataInputStream in) throws IOException {
+        FileId fileId = readFileId(in);
+        return new FileChunk(fileId, in.readInt());
+    }
+
+    static FileId readFileId(DataInputStream in) throws IOException {
+        return FileId.fromHex(in.readUTF());
+    }
+
+    private static void writeChunkInfo(DataOutputStream out, ChunkInfo chunkInfo) throws IOException {
+        out.writeInt(chunkInfo.getDesiredReplicationDeg());
+        out.writeInt(chunkInfo.getSize());
+        int[] peers = chunkInfo.getPeers();
+        out.writeInt(peers.length);
+        for (int peerId : peers) {
+            out.writeInt(peerId);
+        }
+    }
+
+    static ChunkInfo readChunkInfo(DataInputStream in) throws IOException {
+        ChunkInfo chunkInfo = new ChunkInfo(in.readInt(), in.readInt());
+        int peers = in.readInt();
+        for (int i = 0; i < peers; i++) {
+            chunkInfo.addPeer(in.readInt());
+        }
+        return chunkInfo;
+    }
+
+    /**
+     * Waits for the flush of the records up to a given one.
+     */
+    private static class FlushWaiter {
+        private long lastRecord;
+        private CompletableFuture<Void> future = new CompletableFuture<>();
+
+        FlushWaiter(long lastRecord) {
+            this.lastRecord = lastRecord;
+        }
+    }
+
+    /**
+     * Writes the fields of a record.
+     */
+    private interface RecordWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+}
@@ -0,0 +1,79 @@
+package peer;
+
+import storage.FileId;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class StateShards {
+
+    private ExecutorService[] shards;
+
+    /**
+     * Partitions the peer state by file. Each shard is an event loop owned by a single thread, and every update to the
+     * state of a file runs on the shard of that file, so the containers of a file are only ever written by one thread
+     * and need no locks.
+     *
+     * @param count - the number of shards
+     */
+    StateShards(int count) {
+        shards = new ExecutorService[count];
+
+        for (int i = 0; i < count; i++) {
+            int index = i;
+            shards[i] = Executors.newSingleThreadExecutor(task -> {
+                Thread thread = new Thread(task, "shard-" + index);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Retrieves the shard that owns a file. Messages that do not refer to a file go to the first shard.
+     *
+     * @param fileId - the file id or null
+     * @return the shard index
+     */
+    public int getShardIndex(FileId fileId) {
+        if (fileId == null) {
+            return 0;
+        }
+        return Math.floorMod(fileId.hashCode(), shards.length);
+    }
+
+    public Executor getShard(int index) {
+        return shards[index];
+    }
+
+    public Executor getShard(FileId fileId) {
+        return shards[getShardIndex(fileId)];
+    }
+
+    /**
+     * Runs a task on the shard of a file, without waiting for it.
+     *
+     * @param fileId - the file id
+     * @param task - the task
+     */
+    public void execute(FileId fileId, Runnable task) {
+        getShard(fileId).execute(task);
+    }
+
+    /**
+     * Runs a task on the shard of a file.
+     *
+     * @param fileId - the file id
+     * @param task - the task
+     * @return a future completed when the task ends
+     */
+    public CompletableFuture<Void> submit(FileId fileId, Runnable task) {
+        return CompletableFuture.runAsync(task, getShard(fileId));
+    }
+}
@@ -2,25 +2,39 @@ package protocols;
 
 import message.Message;
 import channels.Channel;
+import channels.RttEstimator;
 import peer.PeerState;
-import storage.ChunkInfo;
-import storage.FileChunk;
 import user_interface.UI;
+import utils.Scheduler;
+import utils.TimerWheel;
 import utils.Utils;
 
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class BackupChunkInitiator implements Runnable {
 
     private Message message;
     private Channel channel;
     private PeerState peerState;
+    private Scheduler scheduler;
+    private Executor shard;
     private boolean selfDoing = false;
 
-    public BackupChunkInitiator(PeerState peerState, Message message, Channel channel) {
+    private CompletableFuture<Void> replicated;
+    private volatile TimerWheel.Timeout retransmission;
+    private AtomicBoolean isFinished = new AtomicBoolean(false);
+    private volatile long sentAt = 0;
+    private int tries = 1;
+    private volatile int backoff;
+
+    public BackupChunkInitiator(PeerState peerState, Message message, Channel channel, Scheduler scheduler) {
         this.peerState = peerState;
         this.channel = channel;
         this.message = message;
+        this.scheduler = scheduler;
+        this.shard = peerState.getShards().getShard(message.getFileId());
         if (this.message.getSenderId() == peerState.getServerId()) {
             selfDoing = true;
 
@@ -30,8 +44,13 @@ public class BackupChunkInitiator implements Runnable {
     /**
      * Executes the backup protocol for a specific chunk.
      * Starts by checking if the replication degree was achieved meanwhile, aborting if positive.
-     * Then, sends the PUTCHUNK message and waits until the replication degree is satisfied.
-     * Aborts if the max number of tries is achieved.
+     * Then, sends the PUTCHUNK message and, once the channel sender has actually sent it, schedules its retransmission
+     * on the timer wheel, for when the timeout derived from the channel round-trip estimate expires. The protocol holds
+     * no thread while it waits: it ends when the STORED that satisfies the replication degree is handled or when the
+     * max number of tries is achieved.
+     * Must run on the shard of the chunk file, where its retransmissions are also run, since it updates the chunk
+     * state.
+     * The chunk message is released when the protocol ends.
      */
     @Override
     public void run() {
@@ -40,58 +59,109 @@ public class BackupChunkInitiator implements Runnable {
         if (peerState.getChunkRepDeg(message) >= message.getReplicationDeg()) {
             UI.printWarning("Chunk " + message.getChunkNo() + " replication degree was achieved in the meantime");
             UI.printInfo("------------------------------------------------------");
+            message.release();
             return;
         }
 
-
         peerState.listenForSTORED(message);
+        replicated = peerState.awaitReplication(message);
 
+        send();
+        replicated.thenRun(this::onReplicated);
+    }
 
-        int tries = 1;
-        int waitTime = 500;
+    /**
+     * Hands the PUTCHUNK to the workers, which wait for a place in the send queue, so the shard never waits for the
+     * channel. The message is retained until it is queued.
+     */
+    private void send() {
+        UI.print("Sending PUTCHUNK id "+ message.getChunkNo() + " messages " + tries + " times");
+        int attempt = tries;
+        message.retain();
+        scheduler.submit(() -> {
+            try {
+                channel.sendMessage(message, time -> onSent(attempt, time));
+            } finally {
+                message.release();
+            }
+        });
+    }
 
-        do {
-            UI.print("Sending PUTCHUNK id "+ message.getChunkNo().toString() + " messages " + tries + " times");
+    /**
+     * The PUTCHUNK left the channel sender: arms its retransmission timer from the actual send time. Runs on the sender
+     * thread.
+     *
+     * @param attempt - the try that was sent
+     * @param time - the send time
+     */
+    private void onSent(int attempt, long time) {
+        if (isFinished.get()) {
+            return;
+        }
+        if (attempt == 1) {
+            sentAt = time;
+        }
+        RttEstimator rttEstimator = channel.getRttEstimator();
+        backoff = rttEstimator.getBackoff();
+        retransmission = scheduler.schedule(() -> shard.execute(this::onTimeout), rttEstimator.getTimeout());
+    }
 
-            if (tries > Utils.MAX_PUTCHUNK_TRIES) {
-                UI.printError("Aborting backup, attempt limit reached");
-                UI.printInfo("------------------------------------------------------");
-                break;
-            }
-            channel.sendMessage(message);
-            tries++;
-            waitTime *= 2;
-        } while (!hasDesiredReplicationDeg(waitTime));
-        if(selfDoing){
-            peerState.removeBackedUpContainer(message);
+    /**
+     * The desired replication degree for the chunk was met. Only a chunk replicated on its first try gives a round-trip
+     * sample, since the STORED replies of a retransmitted one are ambiguous.
+     */
+    private void onReplicated() {
+        if (!isFinished.compareAndSet(false, true)) {
+            return;
+        }
+        TimerWheel.Timeout timeout = retransmission;
+        if (timeout != null) {
+            timeout.cancel();
         }
 
-        UI.printInfo("------------------------------------------------------");
+        if (tries == 1 && sentAt != 0) {
+            channel.getRttEstimator().addSample(System.currentTimeMillis() - sentAt);
+            if (channel.getPacer() != null) {
+                channel.getPacer().onDelivered();
+            }
+        }
+        finish();
     }
 
     /**
-     * Checks if the desired replication degree for the chunk has been met
-     *
-     * @param waitTime - max delay before checking
-     * @return true if desired replication degree has been met, false otherwise
+     * The retransmission timeout expired before the desired replication degree was met: retransmits the chunk or aborts
+     * if the max number of tries is achieved.
      */
-    private boolean hasDesiredReplicationDeg(int waitTime) {
-        try {
-            Thread.sleep(waitTime);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+    private void onTimeout() {
+        if (isFinished.get() || replicated.isDone()) {
+            return;
+        }
+
+        channel.getRttEstimator().onTimeout(backoff);
+        if (channel.getPacer() != null) {
+            channel.getPacer().onLost();
         }
 
-        if (selfDoing) {
-            int currentDegree = 0;
-            FileChunk fileChunk = new FileChunk(message.getFileId(), message.getChunkNo());
-            ConcurrentHashMap<FileChunk, ChunkInfo> storedChunks = peerState.getStoredChunks();
-            if (storedChunks.containsKey(fileChunk)) {
-                currentDegree = storedChunks.get(fileChunk).getCurrentReplicationDeg();
+        tries++;
+        if (tries > Utils.MAX_PUTCHUNK_TRIES) {
+            if (!isFinished.compareAndSet(false, true)) {
+                return;
             }
-            return currentDegree >= message.getReplicationDeg();
+            UI.printError("Aborting backup of chunk " + message.getChunkNo() + ", attempt limit reached");
+            peerState.stopAwaitingReplication(message);
+            finish();
+            return;
         }
 
-        return peerState.getChunkRepDeg(message) >= message.getReplicationDeg();
+        send();
+    }
+
+    private void finish() {
+        if(selfDoing){
+            peerState.removeBackedUpContainer(message);
+        }
+        message.release();
+
+        UI.printInfo("------------------------------------------------------");
     }
 }
@@ -2,12 +2,23 @@ package protocols;
 
 import message.Message;
 import peer.PeerState;
+import peer.StateShards;
 import channels.Channel;
+import channels.RttEstimator;
+import storage.FileId;
+import utils.BufferPool;
 import utils.Utils;
 import user_interface.UI;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 
 public class BackupInitiator implements Runnable {
@@ -15,14 +26,17 @@ public class BackupInitiator implements Runnable {
     private String filePath;
     private int replicationDegree;
     private int numberOfChunks;
-    private ArrayList<Message> chunks;
-    private String fileId;
+    private FileId fileId;
     private File file;
     private PeerState peerState;
+    private StateShards shards;
     private Channel channel;
+    private ArrayList<PendingChunk> window;
+    private LinkedBlockingQueue<PendingChunk> replicatedChunks;
 
     public BackupInitiator(PeerState peerState, String filePath, int replicationDegree, Channel channel) {
         this.peerState = peerState;
+        this.shards = peerState.getShards();
         this.channel = channel;
         this.filePath = filePath;
         this.replicationDegree = replicationDegree;
@@ -31,96 +45,221 @@ public class BackupInitiator implements Runnable {
         fileId = Utils.getFileID(filePath);
 
         numberOfChunks = (int) (file.length() / Utils.MAX_CHUNK_SIZE + 1);
-        chunks = new ArrayList<>();
+        window = new ArrayList<>(Utils.BACKUP_WINDOW_SIZE);
+        replicatedChunks = new LinkedBlockingQueue<>();
     }
 
     /**
      * Executes the backup protocol for a file.
+     * The file is streamed: chunks are read lazily and at most BACKUP_WINDOW_SIZE PUTCHUNKs are in flight at a time.
+     * A chunk leaves the window, and its buffer is released, as soon as it reaches the desired replication degree,
+     * which lets the next chunk be read and sent. Completion is signalled by the STORED handling, so the backup ends as
+     * soon as the last chunk is satisfied. Each chunk has its own retransmission timer, derived from the round-trip
+     * estimate of the channel, and only chunks still missing STOREDs are retransmitted. Replications and retransmissions
+     * are reported to the channel pacer, which adapts the send rate.
+     * The peer state of the file is only changed on its shard: a chunk starts being tracked, and is first sent, there,
+     * so its STORED replies are always handled after it is tracked. Its place in the send queue is reserved here
+     * first, so the shard never waits for the channel.
      */
     @Override
     public void run() {
 
         UI.printInfo("-------------- Executing Backup Protocol -------------");
 
-        splitIntoChunks();
+        if (numberOfChunks > Utils.MAX_CHUNKS) {
+            UI.printError("File " + filePath + " has more than " + Utils.MAX_CHUNKS + " chunks");
+            UI.printInfo("------------------------------------------------------");
+            return;
+        }
 
-        peerState.initPeersWithFile(fileId);
+        shards.execute(fileId, () -> peerState.initPeersWithFile(fileId));
 
-        for (Message chunk : chunks) {
-            peerState.listenForSTORED(chunk);
-        }
+        try (FileChannel fileChannel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+            int nextChunk = 0;
 
-        int tries = 1;
-        int waitTime = 500;
+            while (nextChunk < numberOfChunks || !window.isEmpty()) {
+                while (window.size() < Utils.BACKUP_WINDOW_SIZE && nextChunk < numberOfChunks) {
+                    PendingChunk chunk = new PendingChunk(readChunk(fileChannel, nextChunk++));
+                    window.add(chunk);
+                    channel.reserve();
+                    shards.execute(fileId, () -> {
+                        peerState.listenForSTORED(chunk.message);
+                        peerState.awaitReplication(chunk.message).thenRun(() -> {
+                            chunk.replicatedAt = System.currentTimeMillis();
+                            replicatedChunks.offer(chunk);
+                        });
+                        send(chunk);
+                    });
+                }
 
-        do {
-            UI.print("Sending " + filePath + " PUTCHUNK messages " + tries + " times");
+                waitForSTORED();
 
-            if (tries > Utils.MAX_PUTCHUNK_TRIES) {
-                UI.printError("Aborting backup, attempt limit reached");
-                UI.printInfo("------------------------------------------------------");
-                return;
+                if (!updateWindow()) {
+                    UI.printError("Aborting backup, attempt limit reached");
+                    UI.printInfo("------------------------------------------------------");
+                    return;
+                }
             }
-
-            for (Message chunk : chunks) {
-                channel.sendMessage(chunk);
-                UI.print("Sending " + chunk.getMessageType() + " message: " + chunk.getChunkNo());
+        } catch (IOException e) {
+            UI.printError("Failed to read " + filePath);
+            e.printStackTrace();
+            UI.printInfo("------------------------------------------------------");
+            return;
+        } finally {
+            for (PendingChunk chunk : window) {
+                shards.execute(fileId, () -> {
+                    peerState.stopAwaitingReplication(chunk.message);
+                    chunk.message.release();
+                });
             }
-            tries++;
-            waitTime *= 2;
-
-        } while (!wereAllSTOREDReceived(waitTime));
+            window.clear();
+        }
 
-        peerState.backUpFile(filePath, fileId, numberOfChunks);
+        shards.execute(fileId, () -> peerState.backUpFile(filePath, fileId, numberOfChunks));
         UI.printOK("File " + filePath + " backed up");
         UI.printInfo("------------------------------------------------------");
     }
 
-
     /**
-     * Splits file in chunks
+     * Reads a chunk of the file into a pooled buffer, with a positional read.
+     *
+     * @param fileChannel - the file channel
+     * @param chunkNo - the chunk number
+     * @return the PUTCHUNK message, which owns the buffer
      */
-    private void splitIntoChunks() {
-        try {
-            FileInputStream fileStream = new FileInputStream(file);
-            BufferedInputStream bufferedFile = new BufferedInputStream(fileStream);
-
-            for (int i = 0; i < numberOfChunks; i++) {
-                byte[] body;
-                byte[] aux = new byte[Utils.MAX_CHUNK_SIZE];
-                int bytesRead = bufferedFile.read(aux);
+    private Message readChunk(FileChannel fileChannel, int chunkNo) throws IOException {
+        byte[] buffer = BufferPool.acquire();
+        ByteBuffer body = ByteBuffer.wrap(buffer, 0, Utils.MAX_CHUNK_SIZE);
+        long position = (long) chunkNo * Utils.MAX_CHUNK_SIZE;
 
+        try {
+            while (body.hasRemaining()) {
+                int bytesRead = fileChannel.read(body, position + body.position());
                 if (bytesRead == -1) {
-                    body = new byte[0];
-                } else if (bytesRead < Utils.MAX_CHUNK_SIZE) {
-                    body = new byte[bytesRead];
-                } else {
-                    body = new byte[Utils.MAX_CHUNK_SIZE];
+                    break;
                 }
-
-                System.arraycopy(aux, 0, body, 0, body.length);
-                chunks.add(new Message(peerState.getVersion(), peerState.getServerId(), fileId, body, Message.MessageType.PUTCHUNK, i, replicationDegree));
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            BufferPool.release(buffer);
+            throw e;
         }
+
+        Message message = new Message(peerState.getVersion(), peerState.getServerId(), fileId, null, Message.MessageType.PUTCHUNK, chunkNo, replicationDegree);
+        message.setPooledBody(buffer, body.position());
+        return message;
     }
 
     /**
-     * After the given waitTime, checks if all chunks have achieved their desired replication degree, while removing those that have from the chunks container.
+     * Queues the PUTCHUNK message of a chunk, in a place of the send queue reserved by the caller. Its retransmission
+     * timer is armed, with the backed off channel timeout, when the sender thread actually sends it, so the time it
+     * waits in the send queue or for the pacer is not counted as round-trip time.
      *
-     * @param waitTime - the delay before starting to check
-     * @return true if all the chunks achieved their desired replication degree and false if otherwise
+     * @param chunk - the chunk being sent
+     */
+    private void send(PendingChunk chunk) {
+        UI.print("Sending " + chunk.message.getMessageType() + " message: " + chunk.message.getChunkNo() + " (try " + chunk.tries + ")");
+
+        int tries = chunk.tries;
+        chunk.deadline = 0;
+        channel.sendReserved(chunk.message, time -> {
+            if (tries == 1) {
+                chunk.sentAt = time;
+            }
+            RttEstimator rttEstimator = channel.getRttEstimator();
+            chunk.backoff = rttEstimator.getBackoff();
+            chunk.deadline = time + rttEstimator.getTimeout();
+        });
+    }
+
+    /**
+     * Waits until a chunk of the window is replicated or the earliest retransmission deadline expires, whichever comes
+     * first. A chunk still waiting to be sent has no deadline yet, so the wait is then bounded by the channel timeout.
      */
-    private boolean wereAllSTOREDReceived(int waitTime) {
+    private void waitForSTORED() {
+        long earliestDeadline = Long.MAX_VALUE;
+        for (PendingChunk chunk : window) {
+            long deadline = chunk.deadline;
+            if (deadline == 0) {
+                deadline = System.currentTimeMillis() + channel.getRttEstimator().getTimeout();
+            }
+            earliestDeadline = Math.min(earliestDeadline, deadline);
+        }
+
+        long waitTime = earliestDeadline - System.currentTimeMillis();
+        if (waitTime <= 0 || !replicatedChunks.isEmpty()) {
+            return;
+        }
+
         try {
-            Thread.sleep(waitTime);
+            PendingChunk chunk = replicatedChunks.poll(waitTime, TimeUnit.MILLISECONDS);
+            if (chunk != null) {
+                replicatedChunks.offer(chunk);
+            }
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
+    }
+
+    /**
+     * Removes the chunks that achieved their desired replication degree from the window, releasing their buffers, and
+     * resends the chunks whose deadline expired. Chunks still waiting to be sent never expire.
+     *
+     * @return false if a chunk reached the max number of tries, true otherwise
+     */
+    private boolean updateWindow() {
+        PendingChunk replicated;
+        while ((replicated = replicatedChunks.poll()) != null) {
+            replicated.isReplicated = true;
+        }
+
+        long now = System.currentTimeMillis();
+        Iterator<PendingChunk> iterator = window.iterator();
+
+        while (iterator.hasNext()) {
+            PendingChunk chunk = iterator.next();
+
+            long deadline = chunk.deadline;
+            if (chunk.isReplicated) {
+                if (chunk.tries == 1 && chunk.sentAt != 0) {
+                    channel.getRttEstimator().addSample(chunk.replicatedAt - chunk.sentAt);
+                    if (channel.getPacer() != null) {
+                        channel.getPacer().onDelivered();
+                    }
+                }
+                chunk.message.release();
+                iterator.remove();
+            } else if (deadline != 0 && now >= deadline) {
+                if (chunk.tries >= Utils.MAX_PUTCHUNK_TRIES) {
+                    return false;
+                }
+                chunk.tries++;
+                channel.getRttEstimator().onTimeout(chunk.backoff);
+                if (channel.getPacer() != null) {
+                    channel.getPacer().onLost();
+                }
+                channel.reserve();
+                send(chunk);
+            }
+        }
+
+        return true;
+    }
 
-        chunks.removeIf(chunk -> peerState.getChunkRepDeg(chunk) >= chunk.getReplicationDeg());
+    /**
+     * A PUTCHUNK in flight, with its retransmission state. The send time, deadline and backoff are set by the channel
+     * sender thread; a deadline of 0 means the chunk was not sent yet.
+     */
+    private static class PendingChunk {
+        private Message message;
+        private int tries = 1;
+        private volatile long sentAt = 0;
+        private volatile long deadline = 0;
+        private volatile int backoff;
+        private long replicatedAt;
+        private boolean isReplicated = false;
 
-        return chunks.isEmpty();
+        PendingChunk(Message message) {
+            this.message = message;
+        }
     }
 }
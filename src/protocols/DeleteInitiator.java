@@ -3,6 +3,7 @@ package protocols;
 import message.Message;
 import peer.Peer;
 import channels.Channel;
+import storage.FileId;
 import storage.FileInfo;
 import utils.Utils;
 import user_interface.UI;
@@ -24,13 +25,15 @@ public class DeleteInitiator implements Runnable {
     /**
      * Executes the delete protocol.
      * Starts by checking if the file is being backed up by the peer, aborting if otherwise.
-     * Then, sends the DELETE message to the channel.
+     * Then, removes the file from the backed up files and sends the DELETE message to the channel, on the shard of the
+     * file, so that the ACK_DELETE replies are handled after the state change. The place of the message in the send
+     * queue is reserved here first, so the shard never waits for the channel.
      */
     @Override
     public void run() {
         UI.printInfo("-------------- Executing Delete Protocol -------------");
 
-        String fileId = Utils.getFileID(filePath);
+        FileId fileId = Utils.getFileID(filePath);
         ConcurrentHashMap<String, FileInfo> backedUpFiles = peer.getPeerState().getBackedUpFiles();
         if (!backedUpFiles.containsKey(filePath)) {
             UI.printWarning("File " + filePath + " is not being backed up");
@@ -39,10 +42,12 @@ public class DeleteInitiator implements Runnable {
         }
 
         Message message = new Message(peer.getVersion(), peer.getServerId(), fileId, null, Message.MessageType.DELETE);
-        channel.sendMessage(message);
-        peer.getPeerState().deleteBackedUp(filePath);
-
-        UI.printOK("Deleted file " + filePath);
-        UI.printInfo("------------------------------------------------------");
+        channel.reserve();
+        peer.getPeerState().getShards().execute(fileId, () -> {
+            peer.getPeerState().deleteBackedUp(filePath);
+            channel.sendReserved(message);
+            UI.printOK("Deleted file " + filePath);
+            UI.printInfo("------------------------------------------------------");
+        });
     }
 }
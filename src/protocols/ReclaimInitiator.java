@@ -2,25 +2,34 @@ package protocols;
 
 import message.Message;
 import peer.PeerState;
-import storage.ChunkInfo;
+import storage.FileId;
 import storage.FileChunk;
 import channels.Channel;
 import storage.StorageManager;
 import user_interface.UI;
+import utils.Scheduler;
+import utils.Utils;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 
 public class ReclaimInitiator implements Runnable {
 
     private PeerState peerState;
     private long space;
     private Channel mcChannel;
+    private Scheduler scheduler;
 
-    public ReclaimInitiator(PeerState peerState, long space, Channel mcChannel) {
+    public ReclaimInitiator(PeerState peerState, long space, Channel mcChannel, Scheduler scheduler) {
         this.peerState = peerState;
         this.space = space;
         this.mcChannel = mcChannel;
+        this.scheduler = scheduler;
     }
 
     /**
@@ -45,38 +54,104 @@ public class ReclaimInitiator implements Runnable {
 
     /**
      * Tries to reclaim the space amount specified by deleting the most stored chunks on the system (not local).
+     * The whole set of chunks to be deleted is planned up front. Their state is then updated on the shards of their
+     * files, all shards at once, and the chunk files are deleted by a single background batch. Finally, the REMOVED
+     * notifications are sent, a batch at a time.
      *
      * @param targetSpace - the target space
-     * @return the space reclaimed
+     * @return true if the used space is now at most the target space, false otherwise
      */
     private boolean reclaimSpace(StorageManager storageManager, long targetSpace) {
-        while (storageManager.getUsedSpace() > targetSpace) {
-            FileChunk mostStoredChunk = peerState.getMostStoredChunk();
+        long spaceToFree = storageManager.getUsedSpace() - targetSpace;
+        if (spaceToFree <= 0) {
+            return true;
+        }
 
-            if (mostStoredChunk == null) {
-                UI.printWarning("There is no chunk to be deleted");
-                return storageManager.getUsedSpace() > targetSpace;
-            }
+        ArrayList<FileChunk> victims = peerState.planReclaim(spaceToFree);
+        if (victims.isEmpty()) {
+            UI.printWarning("There is no chunk to be deleted");
+            return false;
+        }
+        UI.print("Deleting " + victims.size() + " chunks");
+
+        HashMap<FileId, ArrayList<FileChunk>> victimsByFile = new HashMap<>();
+        for (FileChunk victim : victims) {
+            victimsByFile.computeIfAbsent(victim.getFileId(), fileId -> new ArrayList<>()).add(victim);
+        }
 
-            String fileId = mostStoredChunk.getFileId();
-            int chunkNo = mostStoredChunk.getChunkNo();
+        ConcurrentHashMap<FileId, int[]> deletedChunks = new ConcurrentHashMap<>();
+        ArrayList<CompletableFuture<Void>> deletions = new ArrayList<>();
+        for (Map.Entry<FileId, ArrayList<FileChunk>> entry : victimsByFile.entrySet()) {
+            FileId fileId = entry.getKey();
+            deletions.add(peerState.getShards().submit(fileId, () -> {
+                int[] chunkNos = entry.getValue().stream()
+                        .filter(victim -> peerState.deleteChunk(victim))
+                        .mapToInt(FileChunk::getChunkNo).sorted().toArray();
+                deletedChunks.put(fileId, chunkNos);
+            }));
+        }
 
-            UI.print("Deleting " + fileId + " - " + chunkNo);
-            peerState.deleteChunk(fileId, chunkNo, true);
-            sendREMOVED(fileId, chunkNo);
+        try {
+            CompletableFuture.allOf(deletions.toArray(new CompletableFuture<?>[0])).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
         }
 
-        return true;
+        storageManager.deleteScheduledChunks();
+        sendREMOVED(deletedChunks);
+
+        return storageManager.getUsedSpace() <= targetSpace;
+    }
+
+    /**
+     * Sends the REMOVED notifications of the deleted chunks, spaced by REMOVED_BATCH_INTERVAL for every
+     * REMOVED_BATCH_SIZE chunks, so that the peers re-replicating them are not flooded at once.
+     * Enhanced peers send a single REMOVED message per batch of chunks of the same file.
+     *
+     * @param deletedChunks - the chunk numbers deleted, by file
+     */
+    private void sendREMOVED(Map<FileId, int[]> deletedChunks) {
+        int batch = 0;
+        int batchSize = 0;
+
+        for (Map.Entry<FileId, int[]> entry : deletedChunks.entrySet()) {
+            FileId fileId = entry.getKey();
+            int[] chunkNos = entry.getValue();
+
+            for (int from = 0; from < chunkNos.length; ) {
+                int to = Math.min(from + Utils.REMOVED_BATCH_SIZE - batchSize, chunkNos.length);
+                scheduleREMOVED(fileId, Arrays.copyOfRange(chunkNos, from, to), batch * Utils.REMOVED_BATCH_INTERVAL);
+
+                batchSize += to - from;
+                if (batchSize == Utils.REMOVED_BATCH_SIZE) {
+                    batch++;
+                    batchSize = 0;
+                }
+                from = to;
+            }
+        }
     }
 
     /**
-     * Creates and sends the REMOVED message to the channel.
+     * Creates and sends the REMOVED messages of chunks of a file to the channel, after a delay.
      *
      * @param fileId - the file id
-     * @param chunkNo - the chunk No
+     * @param chunkNos - the chunk numbers
+     * @param delay - the delay, in milliseconds
      */
-    private void sendREMOVED(String fileId, int chunkNo) {
-        Message removedMessage = new Message(peerState.getVersion(), peerState.getServerId(), fileId, null, Message.MessageType.REMOVED, chunkNo);
-        mcChannel.sendMessage(removedMessage);
+    private void scheduleREMOVED(FileId fileId, int[] chunkNos, int delay) {
+        scheduler.schedule(() -> {
+            if (!peerState.getVersion().equals("1.0")) {
+                byte[] body = Message.encodeChunkNos(chunkNos, 1, chunkNos.length);
+                mcChannel.sendMessage(new Message(peerState.getVersion(), peerState.getServerId(), fileId, body, Message.MessageType.REMOVED, chunkNos[0]));
+                return;
+            }
+
+            for (int chunkNo : chunkNos) {
+                mcChannel.sendMessage(new Message(peerState.getVersion(), peerState.getServerId(), fileId, null, Message.MessageType.REMOVED, chunkNo));
+            }
+        }, delay);
     }
 }
@@ -2,9 +2,12 @@ package protocols;
 
 import message.Message;
 import peer.PeerState;
+import peer.StateShards;
 import channels.Channel;
+import storage.FileId;
 import storage.FileInfo;
 import user_interface.UI;
+import utils.Utils;
 
 import java.util.ArrayList;
 import java.util.concurrent.ConcurrentHashMap;
@@ -24,7 +27,10 @@ public class RestoreInitiator implements Runnable {
     /**
      * Executes the restore protocol.
      * Starts by checking if the file is being backed up by the peer, aborting if otherwise.
-     * Then, generates the PUTCHUNK messages for the file chunks of the file being restored and, sends them to the channel.
+     * Then, marks the file as being restored on its shard and generates the GETCHUNK messages for its chunks, which are
+     * sent from the shard too, so that no CHUNK reply is handled before the file is marked. They are sent
+     * RESTORE_BATCH_SIZE at a time, each batch in its own shard task, with their places in the send queue reserved
+     * here first, so the shard never waits for the channel.
      */
     @Override
     public void run() {
@@ -38,20 +44,27 @@ public class RestoreInitiator implements Runnable {
         }
 
         FileInfo fileInfo = backedUpFilesByPaths.get(filePath);
-        String fileId = fileInfo.getFileId();
+        FileId fileId = fileInfo.getFileId();
         int numberOfChunks = fileInfo.getNumberOfChunks();
 
-        peerState.addToRestoringFiles(fileId, fileInfo);
         UI.print("Restoring file with " + numberOfChunks + " chunks");
 
-        ArrayList<Message> chunks = new ArrayList<>();
-        for (int i = 0; i < numberOfChunks; i++) {
-            chunks.add(new Message(peerState.getVersion(), peerState.getServerId(), fileId, null, Message.MessageType.GETCHUNK, i));
-        }
+        StateShards shards = peerState.getShards();
+        shards.execute(fileId, () -> peerState.addToRestoringFiles(fileId, fileInfo));
+
+        for (int from = 0; from < numberOfChunks; from += Utils.RESTORE_BATCH_SIZE) {
+            ArrayList<Message> chunks = new ArrayList<>();
+            for (int i = from; i < Math.min(from + Utils.RESTORE_BATCH_SIZE, numberOfChunks); i++) {
+                chunks.add(new Message(peerState.getVersion(), peerState.getServerId(), fileId, null, Message.MessageType.GETCHUNK, i));
+                channel.reserve();
+            }
 
-        for (Message chunk : chunks) {
-            channel.sendMessage(chunk);
-            UI.print("Sending " + chunk.getMessageType() + " message: " + chunk.getChunkNo());
+            shards.execute(fileId, () -> {
+                for (Message chunk : chunks) {
+                    channel.sendReserved(chunk);
+                    UI.print("Sending " + chunk.getMessageType() + " message: " + chunk.getChunkNo());
+                }
+            });
         }
 
         UI.printInfo("------------------------------------------------------");
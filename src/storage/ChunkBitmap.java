@@ -0,0 +1,132 @@
+package storage;
+
+import utils.Utils;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+public class ChunkBitmap implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private static final int WORD_BITS = 6;
+
+    private volatile long[] words;
+    private volatile int cardinality;
+
+    /**
+     * Creates an empty dense bitmap of chunk numbers, one bit per chunk, with O(1) membership updates and lookups.
+     * Must only be updated by the shard that owns the file. Reads never change the bitmap, so it can be read, and
+     * serialized, from other threads.
+     */
+    public ChunkBitmap() {
+        words = new long[1];
+        cardinality = 0;
+    }
+
+    /**
+     * Adds a chunk number to the bitmap.
+     *
+     * @param chunkNo - the chunk number
+     * @return true if the chunk number was not in the bitmap yet
+     */
+    public boolean set(int chunkNo) {
+        if (!isValid(chunkNo)) {
+            throw new IllegalArgumentException("Invalid chunk number " + chunkNo);
+        }
+
+        int index = chunkNo >>> WORD_BITS;
+        long[] current = words;
+        if (index >= current.length) {
+            current = Arrays.copyOf(current, Math.max(index + 1, current.length * 2));
+        }
+
+        long mask = 1L << chunkNo;
+        if ((current[index] & mask) != 0) {
+            return false;
+        }
+
+        current[index] |= mask;
+        words = current;
+        cardinality++;
+        return true;
+    }
+
+    /**
+     * Removes a chunk number from the bitmap.
+     *
+     * @param chunkNo - the chunk number
+     * @return true if the chunk number was in the bitmap
+     */
+    public boolean clear(int chunkNo) {
+        if (!isValid(chunkNo)) {
+            return false;
+        }
+
+        int index = chunkNo >>> WORD_BITS;
+        long[] current = words;
+        long mask = 1L << chunkNo;
+        if (index >= current.length || (current[index] & mask) == 0) {
+            return false;
+        }
+
+        current[index] &= ~mask;
+        words = current;
+        cardinality--;
+        return true;
+    }
+
+    public boolean get(int chunkNo) {
+        if (!isValid(chunkNo)) {
+            return false;
+        }
+
+        int index = chunkNo >>> WORD_BITS;
+        long[] current = words;
+        return index < current.length && (current[index] & (1L << chunkNo)) != 0;
+    }
+
+    /**
+     * Finds the first chunk number in the bitmap starting at the given one, skipping a whole word of absent chunks at a
+     * time.
+     *
+     * @param from - the chunk number to start at
+     * @return the chunk number or -1 if there is none
+     */
+    public int nextSetBit(int from) {
+        long[] current = words;
+        int index = from >>> WORD_BITS;
+        if (index >= current.length) {
+            return -1;
+        }
+
+        long word = current[index] & (-1L << from);
+        while (true) {
+            if (word != 0) {
+                return (index << WORD_BITS) + Long.numberOfTrailingZeros(word);
+            }
+            if (++index == current.length) {
+                return -1;
+            }
+            word = current[index];
+        }
+    }
+
+    /**
+     * @return the number of chunks in the bitmap
+     */
+    public int cardinality() {
+        return cardinality;
+    }
+
+    public boolean isEmpty() {
+        return cardinality == 0;
+    }
+
+    /**
+     * Chunk numbers come from the network, so they are bounded before being used as indexes: a single large one would
+     * grow the bitmap by hundreds of megabytes.
+     */
+    private static boolean isValid(int chunkNo) {
+        return chunkNo >= 0 && chunkNo < Utils.MAX_CHUNKS;
+    }
+}
@@ -0,0 +1,226 @@
+package storage;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ChunkCache {
+
+    private static final int MAX_INVALIDATIONS = 1024;
+
+    private Segment[] segments;
+    private long capacity;
+
+    private AtomicLong hits = new AtomicLong(0);
+    private AtomicLong misses = new AtomicLong(0);
+    private AtomicLong evictions = new AtomicLong(0);
+
+    /**
+     * Creates a cache of the chunk bodies read recently, so that the chunks of a file restored by several clients are
+     * read from disk only once. It is split into segments by chunk, each an LRU list with its share of the memory
+     * budget and its own lock, so concurrent lookups seldom contend. Each segment also versions its invalidations,
+     * so a chunk written or deleted only keeps its own in-flight reads out of the cache.
+     *
+     * @param capacity - the memory budget, in bytes. A budget of 0 disables the cache
+     * @param segmentCount - the number of segments
+     */
+    public ChunkCache(long capacity, int segmentCount) {
+        this.capacity = capacity;
+        segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(capacity / segmentCount);
+        }
+    }
+
+    /**
+     * Copies a cached chunk body into the buffer.
+     *
+     * @param fileChunk - the chunk
+     * @param buffer - the buffer
+     * @return the body length or -1 if the chunk is not cached
+     */
+    public int get(FileChunk fileChunk, byte[] buffer) {
+        byte[] body = getSegment(fileChunk).get(fileChunk);
+        if (body == null) {
+            misses.incrementAndGet();
+            return -1;
+        }
+
+        hits.incrementAndGet();
+        System.arraycopy(body, 0, buffer, 0, body.length);
+        return body.length;
+    }
+
+    /**
+     * @param fileChunk - the chunk
+     * @return the current stamp of the segment of the chunk, to be taken before reading a chunk that is going to be
+     * cached
+     */
+    public long getStamp(FileChunk fileChunk) {
+        Segment segment = getSegment(fileChunk);
+        synchronized (segment) {
+            return segment.stamp;
+        }
+    }
+
+    /**
+     * Caches a copy of a chunk body read from disk. Nothing is cached if the chunk, or its file, was invalidated since
+     * the stamp was taken, since the body read may be stale by then.
+     *
+     * @param fileChunk - the chunk
+     * @param buffer - the buffer holding the body
+     * @param length - the body length
+     * @param readStamp - the stamp taken before reading the body
+     */
+    public void put(FileChunk fileChunk, byte[] buffer, int length, long readStamp) {
+        Segment segment = getSegment(fileChunk);
+        if (length > segment.capacity) {
+            return;
+        }
+
+        byte[] body = new byte[length];
+        System.arraycopy(buffer, 0, body, 0, length);
+        synchronized (segment) {
+            if (!segment.isInvalidatedSince(fileChunk, readStamp)) {
+                segment.put(fileChunk, body);
+            }
+        }
+    }
+
+    /**
+     * Drops a chunk that was written or deleted.
+     *
+     * @param fileChunk - the chunk
+     */
+    public void invalidate(FileChunk fileChunk) {
+        Segment segment = getSegment(fileChunk);
+        synchronized (segment) {
+            segment.invalidatedChunks.put(fileChunk, ++segment.stamp);
+            segment.remove(fileChunk);
+            segment.trimInvalidations();
+        }
+    }
+
+    /**
+     * Drops every chunk of a deleted file.
+     *
+     * @param fileId - the file id
+     */
+    public void invalidate(FileId fileId) {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.invalidatedFiles.put(fileId, ++segment.stamp);
+                segment.removeFile(fileId);
+                segment.trimInvalidations();
+            }
+        }
+    }
+
+    private Segment getSegment(FileChunk fileChunk) {
+        return segments[Math.floorMod(fileChunk.hashCode(), segments.length)];
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the memory used by the cached bodies, in bytes
+     */
+    public long getUsedBytes() {
+        long usedBytes = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                usedBytes += segment.usedBytes;
+            }
+        }
+        return usedBytes;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * An LRU list of chunk bodies, bounded by its size in bytes. The stamp counts the invalidations of the segment and
+     * the last stamp of each chunk and file invalidated is kept, up to MAX_INVALIDATIONS of them. Once there are more,
+     * they are dropped and every read older than the current stamp is rejected.
+     */
+    private class Segment {
+        private LinkedHashMap<FileChunk, byte[]> bodies = new LinkedHashMap<>(16, 0.75f, true);
+        private long capacity;
+        private long usedBytes = 0;
+        private long stamp = 0;
+        private long oldestStamp = 0;
+        private HashMap<FileChunk, Long> invalidatedChunks = new HashMap<>();
+        private HashMap<FileId, Long> invalidatedFiles = new HashMap<>();
+
+        Segment(long capacity) {
+            this.capacity = capacity;
+        }
+
+        synchronized byte[] get(FileChunk fileChunk) {
+            return bodies.get(fileChunk);
+        }
+
+        void put(FileChunk fileChunk, byte[] body) {
+            byte[] previous = bodies.put(fileChunk, body);
+            if (previous != null) {
+                usedBytes -= previous.length;
+            }
+            usedBytes += body.length;
+
+            Iterator<byte[]> eldest = bodies.values().iterator();
+            while (usedBytes > capacity) {
+                usedBytes -= eldest.next().length;
+                eldest.remove();
+                evictions.incrementAndGet();
+            }
+        }
+
+        boolean isInvalidatedSince(FileChunk fileChunk, long readStamp) {
+            if (readStamp < oldestStamp) {
+                return true;
+            }
+            Long chunkStamp = invalidatedChunks.get(fileChunk);
+            Long fileStamp = invalidatedFiles.get(fileChunk.getFileId());
+            return (chunkStamp != null && chunkStamp > readStamp) || (fileStamp != null && fileStamp > readStamp);
+        }
+
+        void trimInvalidations() {
+            if (invalidatedChunks.size() + invalidatedFiles.size() > MAX_INVALIDATIONS) {
+                invalidatedChunks.clear();
+                invalidatedFiles.clear();
+                oldestStamp = stamp;
+            }
+        }
+
+        void remove(FileChunk fileChunk) {
+            byte[] previous = bodies.remove(fileChunk);
+            if (previous != null) {
+                usedBytes -= previous.length;
+            }
+        }
+
+        void removeFile(FileId fileId) {
+            Iterator<Map.Entry<FileChunk, byte[]>> entries = bodies.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry<FileChunk, byte[]> entry = entries.next();
+                if (entry.getKey().getFileId().equals(fileId)) {
+                    usedBytes -= entry.getValue().length;
+                    entries.remove();
+                }
+            }
+        }
+    }
+}
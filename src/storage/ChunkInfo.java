@@ -1,67 +1,59 @@
 package storage;
 
 import java.io.Serializable;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 public class ChunkInfo implements Serializable {
 
-    private static final long serialVersionUID = 1L;
-    private int currentReplicationDeg;
+    private static final long serialVersionUID = 2L;
+    private static final int[] NO_PEERS = new int[0];
+    private static final AtomicLongFieldUpdater<ChunkInfo> PEER_MASK =
+            AtomicLongFieldUpdater.newUpdater(ChunkInfo.class, "peerMask");
+    private static final AtomicReferenceFieldUpdater<ChunkInfo, int[]> OVERFLOW_PEERS =
+            AtomicReferenceFieldUpdater.newUpdater(ChunkInfo.class, int[].class, "overflowPeers");
+
     private int desiredReplicationDeg;
     private int size = 0;
-    private ArrayList<Integer> peersWithChunk;
-    private byte[] body = null;
+    private volatile long peerMask = 0;
+    private volatile int[] overflowPeers = NO_PEERS;
 
     /**
-     * Constructor for saving the desired and the current Replication Degree
+     * Constructor for saving the desired Replication Degree. The current replication degree is derived from the set of
+     * peers backing up the chunk: peers with ids from 0 to 63 are kept as bits of a mask and any other peer in a small
+     * sorted array. Both are updated with CAS, so a peer is never counted twice nor missed under concurrent updates.
      *
      * @param desiredReplicationDeg - the desired replication Degree
-     * @param currentReplicationDeg - the currentReplication Degree
      */
-    public ChunkInfo(int desiredReplicationDeg, int currentReplicationDeg) {
+    public ChunkInfo(int desiredReplicationDeg) {
         this.desiredReplicationDeg = desiredReplicationDeg;
-        this.currentReplicationDeg = currentReplicationDeg;
-        this.peersWithChunk = new ArrayList<>();
     }
 
     /**
      * Constructor for providing the size of the chunk.
      *
      * @param desiredReplicationDeg - the desired replication Degree
-     * @param currentReplicationDeg - the currentReplication Degree
      * @param size - the size of the chunk
      */
-    public ChunkInfo(int desiredReplicationDeg, int currentReplicationDeg, int size) {
-        this(desiredReplicationDeg, currentReplicationDeg);
+    public ChunkInfo(int desiredReplicationDeg, int size) {
+        this(desiredReplicationDeg);
         this.size = size;
     }
 
+    /**
+     * @return the number of peers backing up the chunk
+     */
     public int getCurrentReplicationDeg() {
-        return currentReplicationDeg;
+        return Long.bitCount(peerMask) + overflowPeers.length;
     }
 
     public int getDesiredReplicationDeg() {
         return desiredReplicationDeg;
     }
 
-    public void increaseCurrentRepDeg() {
-        currentReplicationDeg++;
-    }
-
-    public void decreaseCurrentRepDeg() {
-        currentReplicationDeg--;
-    }
-
     public boolean achievedDesiredRepDeg() {
-        return currentReplicationDeg >= desiredReplicationDeg;
-    }
-
-    public byte[] getBody() {
-        return body;
-    }
-
-    public void setBody(byte[] body) {
-        this.body = body;
+        return getCurrentReplicationDeg() >= desiredReplicationDeg;
     }
 
     /**
@@ -70,7 +62,7 @@ public class ChunkInfo implements Serializable {
      * @return The difference value
      */
     public int getReplicationDegDifference() {
-        return currentReplicationDeg - desiredReplicationDeg;
+        return getCurrentReplicationDeg() - desiredReplicationDeg;
     }
 
     public int getSize() {
@@ -78,21 +70,90 @@ public class ChunkInfo implements Serializable {
     }
 
     /**
-     * Adds a peer that backs up the chunk.
+     * Adds a peer that backs up the chunk. Allocation free for peer ids from 0 to 63.
      *
      * @param peerId - the peer id
+     * @return true if the peer was not backing up the chunk yet
      */
-    public void addPeer(int peerId) {
-        peersWithChunk.add(peerId);
+    public boolean addPeer(int peerId) {
+        if (isMaskPeer(peerId)) {
+            long bit = 1L << peerId;
+            long mask;
+            do {
+                mask = peerMask;
+                if ((mask & bit) != 0) {
+                    return false;
+                }
+            } while (!PEER_MASK.compareAndSet(this, mask, mask | bit));
+            return true;
+        }
+
+        int[] peers;
+        int[] updatedPeers;
+        do {
+            peers = overflowPeers;
+            int index = Arrays.binarySearch(peers, peerId);
+            if (index >= 0) {
+                return false;
+            }
+
+            index = -index - 1;
+            updatedPeers = new int[peers.length + 1];
+            System.arraycopy(peers, 0, updatedPeers, 0, index);
+            updatedPeers[index] = peerId;
+            System.arraycopy(peers, index, updatedPeers, index + 1, peers.length - index);
+        } while (!OVERFLOW_PEERS.compareAndSet(this, peers, updatedPeers));
+        return true;
     }
 
     /**
      * Removes a peer that stopped backing up the chunk.
      *
      * @param peerId - the peer id
+     * @return true if the peer was backing up the chunk
+     */
+    public boolean removePeer(int peerId) {
+        if (isMaskPeer(peerId)) {
+            long bit = 1L << peerId;
+            long mask;
+            do {
+                mask = peerMask;
+                if ((mask & bit) == 0) {
+                    return false;
+                }
+            } while (!PEER_MASK.compareAndSet(this, mask, mask & ~bit));
+            return true;
+        }
+
+        int[] peers;
+        int[] updatedPeers;
+        do {
+            peers = overflowPeers;
+            int index = Arrays.binarySearch(peers, peerId);
+            if (index < 0) {
+                return false;
+            }
+
+            updatedPeers = peers.length == 1 ? NO_PEERS : new int[peers.length - 1];
+            System.arraycopy(peers, 0, updatedPeers, 0, index);
+            System.arraycopy(peers, index + 1, updatedPeers, index, peers.length - index - 1);
+        } while (!OVERFLOW_PEERS.compareAndSet(this, peers, updatedPeers));
+        return true;
+    }
+
+    /**
+     * @return the ids of the peers backing up the chunk
      */
-    public void removePeer(Integer peerId) {
-        peersWithChunk.remove(peerId);
+    public int[] getPeers() {
+        long mask = peerMask;
+        int[] overflow = overflowPeers;
+        int[] peers = new int[Long.bitCount(mask) + overflow.length];
+        int i = 0;
+        for (; mask != 0; mask &= mask - 1) {
+            peers[i++] = Long.numberOfTrailingZeros(mask);
+        }
+        System.arraycopy(overflow, 0, peers, i, overflow.length);
+        return peers;
     }
 
     /**
@@ -102,7 +163,14 @@ public class ChunkInfo implements Serializable {
      * @return true if positive and false otherwise
      */
     public boolean isBackedUpByPeer(int peerId) {
-        return peersWithChunk.contains(peerId);
+        if (isMaskPeer(peerId)) {
+            return (peerMask & (1L << peerId)) != 0;
+        }
+        return Arrays.binarySearch(overflowPeers, peerId) >= 0;
+    }
+
+    private static boolean isMaskPeer(int peerId) {
+        return peerId >= 0 && peerId < Long.SIZE;
     }
 
 }
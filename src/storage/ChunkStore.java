@@ -0,0 +1,71 @@
+package storage;
+
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * The backend where the chunks backed up by the peer are kept.
+ * Implementations must be safe to call from several threads.
+ */
+public interface ChunkStore {
+
+    /**
+     * Stores a chunk, replacing it if it is already stored.
+     *
+     * @param fileChunk - the chunk
+     * @param buffer - the buffer holding the chunk body
+     * @param offset - the offset of the body in the buffer
+     * @param length - the body length
+     */
+    void write(FileChunk fileChunk, byte[] buffer, int offset, int length) throws IOException;
+
+    /**
+     * Forces chunks written before to the disk, so that they survive a power cut. Many chunks are made durable at once,
+     * which costs far less than forcing them one at a time.
+     *
+     * @param fileChunks - the chunks
+     */
+    void sync(Collection<FileChunk> fileChunks) throws IOException;
+
+    /**
+     * Reads a stored chunk.
+     *
+     * @param fileChunk - the chunk
+     * @param buffer - the buffer the body is read into
+     * @return the body length or -1 if the chunk is not stored
+     */
+    int read(FileChunk fileChunk, byte[] buffer) throws IOException;
+
+    /**
+     * @param fileChunk - the chunk
+     * @return the body length of a stored chunk or -1 if the chunk is not stored
+     */
+    long size(FileChunk fileChunk) throws IOException;
+
+    /**
+     * Deletes a chunk, if it is stored.
+     *
+     * @param fileChunk - the chunk
+     */
+    void delete(FileChunk fileChunk) throws IOException;
+
+    /**
+     * Deletes every chunk of a file, without reading them. The chunks are gone once this returns, but their space may
+     * be given back to the disk later, in the background.
+     *
+     * @param fileId - the file id
+     */
+    void deleteFile(FileId fileId) throws IOException;
+
+    /**
+     * Releases what the store keeps for a file once it has no chunks left.
+     *
+     * @param fileId - the file id
+     */
+    void deleteIfEmpty(FileId fileId) throws IOException;
+
+    /**
+     * Closes the store.
+     */
+    void close();
+}
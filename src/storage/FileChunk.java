@@ -4,9 +4,9 @@ import java.io.Serializable;
 
 public class FileChunk implements Serializable {
 
-    private static final long serialVersionUID = 1L;
-    private String fileId;
-    private Integer chunkNo;
+    private static final long serialVersionUID = 2L;
+    private final FileId fileId;
+    private final int chunkNo;
 
     /**
      * Creates a chunk for the file id provided and with the respective chunk number
@@ -14,24 +14,25 @@ public class FileChunk implements Serializable {
      * @param fileId  - the file id
      * @param chunkNo - the chunk number
      */
-    public FileChunk(String fileId, Integer chunkNo) {
+    public FileChunk(FileId fileId, int chunkNo) {
         this.fileId = fileId;
         this.chunkNo = chunkNo;
     }
 
-    public String getFileId() {
+    public FileId getFileId() {
         return fileId;
     }
 
-    public Integer getChunkNo() {
+    public int getChunkNo() {
         return chunkNo;
     }
 
+    /**
+     * Combines the precomputed hash of the file id with the chunk number, so hashing never touches the id bytes.
+     */
     @Override
     public int hashCode() {
-        int hash = (chunkNo ^ (chunkNo >>> 32));
-        hash = 31 * hash + fileId.hashCode();
-        return hash;
+        return 31 * fileId.hashCode() + chunkNo;
     }
 
     @Override
@@ -44,6 +45,6 @@ public class FileChunk implements Serializable {
 
         FileChunk other = (FileChunk) obj;
 
-        return (chunkNo.equals(other.chunkNo) && fileId.equals(other.fileId));
+        return (chunkNo == other.chunkNo && fileId.equals(other.fileId));
     }
 }
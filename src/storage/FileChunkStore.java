@@ -0,0 +1,188 @@
+package storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+public class FileChunkStore implements ChunkStore {
+
+    private static final String TOMBSTONE_SUFFIX = ".deleted-";
+
+    private String backupDir;
+    private Executor ioExecutor;
+    private Set<FileId> createdFolders = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Creates the store that keeps every chunk in its own file, at backupDir/fileId/chunkNo.
+     * The folders of deleted files are renamed to tombstones and deleted in the background. Tombstones left behind by
+     * a shutdown are deleted when the store is opened.
+     *
+     * @param backupDir - the backup directory
+     * @param ioExecutor - the storage I/O thread
+     */
+    public FileChunkStore(String backupDir, Executor ioExecutor) {
+        this.backupDir = backupDir;
+        this.ioExecutor = ioExecutor;
+        ioExecutor.execute(this::deleteTombstones);
+    }
+
+    @Override
+    public void write(FileChunk fileChunk, byte[] buffer, int offset, int length) throws IOException {
+        Path fileDir = Paths.get(backupDir + "/" + fileChunk.getFileId());
+        if (!Files.exists(fileDir)) {
+            Files.createDirectories(fileDir);
+            createdFolders.add(fileChunk.getFileId());
+        }
+
+        try (FileChannel channel = FileChannel.open(getChunkPath(fileChunk), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer body = ByteBuffer.wrap(buffer, offset, length);
+            while (body.hasRemaining()) {
+                channel.write(body);
+            }
+        }
+    }
+
+    /**
+     * Forces every chunk file and then, once, each folder where chunk files were created. If file folders were created
+     * since the last sync, the backup directory is forced too, or the new folders, with every chunk in them, could be
+     * lost on a power cut.
+     *
+     * @param fileChunks - the chunks
+     */
+    @Override
+    public void sync(Collection<FileChunk> fileChunks) throws IOException {
+        HashSet<FileId> files = new HashSet<>();
+        for (FileChunk fileChunk : fileChunks) {
+            try (FileChannel channel = FileChannel.open(getChunkPath(fileChunk), StandardOpenOption.WRITE)) {
+                channel.force(false);
+            } catch (NoSuchFileException e) {
+                continue;
+            }
+            files.add(fileChunk.getFileId());
+        }
+
+        for (FileId fileId : files) {
+            try (FileChannel channel = FileChannel.open(Paths.get(backupDir + "/" + fileId), StandardOpenOption.READ)) {
+                channel.force(true);
+            } catch (NoSuchFileException e) {
+                // The file was deleted meanwhile
+            }
+        }
+
+        boolean isFolderCreated = false;
+        for (FileId fileId : files) {
+            isFolderCreated |= createdFolders.remove(fileId);
+        }
+        if (isFolderCreated) {
+            try (FileChannel channel = FileChannel.open(Paths.get(backupDir), StandardOpenOption.READ)) {
+                channel.force(true);
+            }
+        }
+    }
+
+    @Override
+    public int read(FileChunk fileChunk, byte[] buffer) throws IOException {
+        try (FileChannel channel = FileChannel.open(getChunkPath(fileChunk), StandardOpenOption.READ)) {
+            ByteBuffer body = ByteBuffer.wrap(buffer);
+            while (body.hasRemaining()) {
+                if (channel.read(body) == -1) {
+                    break;
+                }
+            }
+            return body.position();
+        } catch (NoSuchFileException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public long size(FileChunk fileChunk) throws IOException {
+        Path path = getChunkPath(fileChunk);
+        return Files.exists(path) ? Files.size(path) : -1;
+    }
+
+    @Override
+    public void delete(FileChunk fileChunk) throws IOException {
+        Files.deleteIfExists(getChunkPath(fileChunk));
+    }
+
+    /**
+     * Renames the folder of the file to a tombstone right away, so that the file can be backed up again at once, and
+     * deletes the tombstone on the storage I/O thread.
+     *
+     * @param fileId - the file id
+     */
+    @Override
+    public void deleteFile(FileId fileId) throws IOException {
+        Path path = Paths.get(backupDir + "/" + fileId);
+        Path tombstone = Paths.get(backupDir + "/" + fileId + TOMBSTONE_SUFFIX + System.nanoTime());
+        createdFolders.remove(fileId);
+        try {
+            Files.move(path, tombstone);
+        } catch (NoSuchFileException e) {
+            return;
+        }
+
+        ioExecutor.execute(() -> deleteFolder(tombstone));
+    }
+
+    @Override
+    public void deleteIfEmpty(FileId fileId) throws IOException {
+        try {
+            Files.deleteIfExists(Paths.get(backupDir + "/" + fileId));
+        } catch (DirectoryNotEmptyException e) {
+            // Chunks of the file are still stored
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private Path getChunkPath(FileChunk fileChunk) {
+        return Paths.get(backupDir + "/" + fileChunk.getFileId() + "/" + fileChunk.getChunkNo());
+    }
+
+    /**
+     * Deletes the tombstones of files whose deletion was interrupted by a shutdown.
+     */
+    private void deleteTombstones() {
+        try (DirectoryStream<Path> folders = Files.newDirectoryStream(Paths.get(backupDir), "*" + TOMBSTONE_SUFFIX + "*")) {
+            for (Path folder : folders) {
+                deleteFolder(folder);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Deletes a folder of chunks.
+     *
+     * @param folder - the folder
+     */
+    private static void deleteFolder(Path folder) {
+        try {
+            try (DirectoryStream<Path> chunks = Files.newDirectoryStream(folder)) {
+                for (Path chunk : chunks) {
+                    Files.delete(chunk);
+                }
+            }
+            Files.delete(folder);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package storage;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+public final class FileId implements Serializable, Comparable<FileId> {
+
+    public static final int SIZE = 32;
+    private static final long serialVersionUID = 1L;
+    private static final char[] hex = "0123456789ABCDEF".toCharArray();
+
+    private final byte[] bytes;
+    private final int hash;
+    private transient String hexString = null;
+
+    /**
+     * Creates a file id from the raw hash bytes. The array is owned by the file id and must not be modified.
+     *
+     * @param bytes - the SHA-256 bytes
+     */
+    public FileId(byte[] bytes) {
+        this.bytes = bytes;
+        this.hash = Arrays.hashCode(bytes);
+    }
+
+    /**
+     * Parses a file id from its hexadecimal representation.
+     *
+     * @param hexString - the hexadecimal string
+     * @return the file id
+     */
+    public static FileId fromHex(String hexString) {
+        int length = hexString.length();
+        if (length % 2 != 0) {
+            throw new IllegalArgumentException("Invalid file id " + hexString);
+        }
+
+        byte[] bytes = new byte[length / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) ((hexValue(hexString.charAt(2 * i)) << 4) | hexValue(hexString.charAt(2 * i + 1)));
+        }
+        return new FileId(bytes);
+    }
+
+    /**
+     * Parses a file id from the hexadecimal ASCII characters of a receive buffer, without building a string.
+     * File ids on the wire are SHA-256 hashes, so any other length is rejected.
+     *
+     * @param data - the buffer
+     * @param from - the index of the first character
+     * @param to   - the index after the last character
+     * @return the file id
+     */
+    public static FileId fromHex(byte[] data, int from, int to) {
+        int length = to - from;
+        if (length != SIZE * 2) {
+            throw new IllegalArgumentException("Invalid file id length " + length);
+        }
+
+        byte[] bytes = new byte[length / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) ((hexValue((char) data[from + 2 * i]) << 4) | hexValue((char) data[from + 2 * i + 1]));
+        }
+        return new FileId(bytes);
+    }
+
+    private static int hexValue(char c) {
+        int value = Character.digit(c, 16);
+        if (value < 0) {
+            throw new IllegalArgumentException("Invalid hexadecimal character " + c);
+        }
+        return value;
+    }
+
+    /**
+     * Writes the hexadecimal representation of the file id into the buffer.
+     *
+     * @param dest - the destination buffer
+     * @param pos  - the position where the file id starts
+     * @return the position after the file id
+     */
+    public int writeHex(byte[] dest, int pos) {
+        for (byte b : bytes) {
+            int v = b & 0xFF;
+            dest[pos++] = (byte) hex[v >>> 4];
+            dest[pos++] = (byte) hex[v & 0x0F];
+        }
+        return pos;
+    }
+
+    /**
+     * Writes the raw bytes of the file id into the buffer.
+     *
+     * @param dest - the destination buffer
+     * @param pos  - the position where the file id starts
+     * @return the position after the file id
+     */
+    public int writeBytes(byte[] dest, int pos) {
+        System.arraycopy(bytes, 0, dest, pos, bytes.length);
+        return pos + bytes.length;
+    }
+
+    /**
+     * @return the length of the raw bytes
+     */
+    public int length() {
+        return bytes.length;
+    }
+
+    /**
+     * @return the length of the hexadecimal representation
+     */
+    public int hexLength() {
+        return bytes.length * 2;
+    }
+
+    /**
+     * Orders file ids by their raw bytes, compared as unsigned, which is also the order of their hexadecimal
+     * representations.
+     */
+    @Override
+    public int compareTo(FileId other) {
+        int length = Math.min(bytes.length, other.bytes.length);
+        for (int i = 0; i < length; i++) {
+            int cmp = Integer.compare(bytes[i] & 0xFF, other.bytes[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return Integer.compare(bytes.length, other.bytes.length);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+
+        if (obj == null || getClass() != obj.getClass())
+            return false;
+
+        FileId other = (FileId) obj;
+        return hash == other.hash && Arrays.equals(bytes, other.bytes);
+    }
+
+    /**
+     * @return the hexadecimal representation, as used on the wire and in the backup folders
+     */
+    @Override
+    public String toString() {
+        if (hexString == null) {
+            char[] hexChars = new char[bytes.length * 2];
+            for (int j = 0; j < bytes.length; j++) {
+                int v = bytes[j] & 0xFF;
+                hexChars[j * 2] = hex[v >>> 4];
+                hexChars[j * 2 + 1] = hex[v & 0x0F];
+            }
+            hexString = new String(hexChars);
+        }
+        return hexString;
+    }
+}
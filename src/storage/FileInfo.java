@@ -5,7 +5,7 @@ import java.io.Serializable;
 public class FileInfo implements Serializable {
 
     private static final long serialVersionUID = 1L;
-    private String fileId;
+    private FileId fileId;
     private Integer numberOfChunks;
     private String filePath;
 
@@ -16,13 +16,13 @@ public class FileInfo implements Serializable {
      * @param numberOfChunks - the number of chunks of that file
      * @param filePath       - the path of the file
      */
-    public FileInfo(String fileId, Integer numberOfChunks, String filePath) {
+    public FileInfo(FileId fileId, Integer numberOfChunks, String filePath) {
         this.fileId = fileId;
         this.numberOfChunks = numberOfChunks;
         this.filePath = filePath;
     }
 
-    public String getFileId() {
+    public FileId getFileId() {
         return fileId;
     }
 
@@ -0,0 +1,146 @@
+package storage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+public class ReclaimIndex {
+
+    private ArrayList<Entry> heap = new ArrayList<>();
+    private HashMap<FileChunk, Entry> entries = new HashMap<>();
+
+    /**
+     * Creates an empty index of the stored chunks, ordered by how good they are as reclaim victims: the chunks with the
+     * largest replication surplus first and, among those, the largest chunks first. It is an indexed binary heap, so
+     * the best victim is found in O(1) and every update costs O(log n).
+     */
+    public ReclaimIndex() {
+    }
+
+    /**
+     * Adds a stored chunk to the index or moves it to its new position, after its replication degree changed.
+     *
+     * @param fileChunk - the chunk
+     * @param chunkInfo - the chunk information
+     */
+    public synchronized void update(FileChunk fileChunk, ChunkInfo chunkInfo) {
+        Entry entry = entries.get(fileChunk);
+        if (entry == null) {
+            entry = new Entry(fileChunk, heap.size());
+            entries.put(fileChunk, entry);
+            heap.add(entry);
+        }
+
+        entry.surplus = chunkInfo.getReplicationDegDifference();
+        entry.size = chunkInfo.getSize();
+        if (!siftUp(entry.index)) {
+            siftDown(entry.index);
+        }
+    }
+
+    /**
+     * Removes a chunk that is no longer stored.
+     *
+     * @param fileChunk - the chunk
+     */
+    public synchronized void remove(FileChunk fileChunk) {
+        Entry entry = entries.remove(fileChunk);
+        if (entry == null) {
+            return;
+        }
+
+        Entry last = heap.remove(heap.size() - 1);
+        if (last != entry) {
+            last.index = entry.index;
+            heap.set(entry.index, last);
+            if (!siftUp(last.index)) {
+                siftDown(last.index);
+            }
+        }
+    }
+
+    /**
+     * Removes the best chunks to be reclaimed from the index, until their sizes add up to the given space or there are
+     * no more chunks with a replication degree at least as high as the desired one. Costs O(k log n) for k chunks.
+     *
+     * @param space - the space to be freed
+     * @return the chunks, best first
+     */
+    public synchronized ArrayList<FileChunk> pollVictims(long space) {
+        ArrayList<FileChunk> victims = new ArrayList<>();
+        long plannedSpace = 0;
+
+        while (plannedSpace < space && !heap.isEmpty() && heap.get(0).surplus >= 0) {
+            Entry best = heap.get(0);
+            remove(best.fileChunk);
+            victims.add(best.fileChunk);
+            plannedSpace += best.size;
+        }
+        return victims;
+    }
+
+    private boolean siftUp(int index) {
+        boolean moved = false;
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (!isBetter(heap.get(index), heap.get(parent))) {
+                break;
+            }
+            swap(index, parent);
+            index = parent;
+            moved = true;
+        }
+        return moved;
+    }
+
+    private void siftDown(int index) {
+        while (true) {
+            int best = index;
+            int left = 2 * index + 1;
+            int right = left + 1;
+
+            if (left < heap.size() && isBetter(heap.get(left), heap.get(best))) {
+                best = left;
+            }
+            if (right < heap.size() && isBetter(heap.get(right), heap.get(best))) {
+                best = right;
+            }
+            if (best == index) {
+                return;
+            }
+
+            swap(index, best);
+            index = best;
+        }
+    }
+
+    private static boolean isBetter(Entry entry, Entry other) {
+        if (entry.surplus != other.surplus) {
+            return entry.surplus > other.surplus;
+        }
+        return entry.size > other.size;
+    }
+
+    private void swap(int i, int j) {
+        Entry entry = heap.get(i);
+        Entry other = heap.get(j);
+        heap.set(i, other);
+        heap.set(j, entry);
+        other.index = i;
+        entry.index = j;
+    }
+
+    /**
+     * A chunk in the heap, with the ordering keys it had when it was last updated.
+     */
+    private static class Entry {
+        private FileChunk fileChunk;
+        private int index;
+        private int surplus;
+        private int size;
+
+        Entry(FileChunk fileChunk, int index) {
+            this.fileChunk = fileChunk;
+            this.index = index;
+        }
+    }
+}
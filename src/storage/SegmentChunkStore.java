@@ -0,0 +1,545 @@
+package storage;
+
+import user_interface.UI;
+import utils.Utils;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+
+public class SegmentChunkStore implements ChunkStore {
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final byte CHUNK = 0;
+    private static final byte CHUNK_TOMBSTONE = 1;
+    private static final byte FILE_TOMBSTONE = 2;
+
+    /**
+     * The record header: crc (4), sequence number (8), type (1), file id length (2), file id, chunk number (4), body
+     * length (4). The crc covers everything after it, body included.
+     */
+    private static final int PREFIX_SIZE = 15;
+    private static final int HEADER_SIZE = PREFIX_SIZE + 8;
+    private static final int MAX_FILE_ID_LENGTH = 128;
+    private static final byte[] EMPTY_BODY = new byte[0];
+
+    private String backupDir;
+    private Executor ioExecutor;
+
+    private TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private Segment activeSegment;
+    private int nextSegmentId = 0;
+    private long nextSeq = 0;
+    private HashMap<FileId, HashMap<Integer, Location>> index = new HashMap<>();
+    private HashSet<Segment> unsyncedSegments = new HashSet<>();
+    private boolean isDirectoryUnsynced = false;
+
+    /**
+     * Creates the log-structured store. Chunks are appended to large segment files and an in-memory index maps every
+     * chunk to its record, so a PUTCHUNK costs a single append instead of a file creation. Deletions append small
+     * tombstone records. Segments whose records are mostly dead are compacted in the background, on the storage I/O
+     * thread, by copying their live records to the end of the log and deleting them.
+     * When opened, the index is rebuilt by scanning the segments, and a record torn by a crash ends its segment.
+     *
+     * @param backupDir - the backup directory, where the segments are kept
+     * @param ioExecutor - the storage I/O thread, where the compactions run
+     */
+    public SegmentChunkStore(String backupDir, Executor ioExecutor) throws IOException {
+        this.backupDir = backupDir;
+        this.ioExecutor = ioExecutor;
+        open();
+    }
+
+    @Override
+    public synchronized void write(FileChunk fileChunk, byte[] buffer, int offset, int length) throws IOException {
+        put(fileChunk, append(nextSeq++, CHUNK, fileChunk.getFileId(), fileChunk.getChunkNo(), buffer, offset, length));
+    }
+
+    /**
+     * Forces every segment appended to since the last sync, whatever the number of chunks, and the directory if
+     * segments were created. The forcing is done without the lock, so appends go on meanwhile.
+     *
+     * @param fileChunks - the chunks, all in the segments appended to
+     */
+    @Override
+    public void sync(Collection<FileChunk> fileChunks) throws IOException {
+        ArrayList<Segment> segmentsToSync;
+        boolean isDirectoryToSync;
+        synchronized (this) {
+            segmentsToSync = new ArrayList<>(unsyncedSegments);
+            unsyncedSegments.clear();
+            isDirectoryToSync = isDirectoryUnsynced;
+            isDirectoryUnsynced = false;
+        }
+
+        for (Segment segment : segmentsToSync) {
+            try {
+                segment.channel.force(false);
+            } catch (ClosedChannelException e) {
+                // Compacted meanwhile, and its live records were forced before it was deleted
+            }
+        }
+        if (isDirectoryToSync) {
+            try (FileChannel channel = FileChannel.open(Paths.get(backupDir), StandardOpenOption.READ)) {
+                channel.force(true);
+            }
+        }
+    }
+
+    /**
+     * Reads a chunk from the memory mapping of its segment, once sealed, without holding the lock. Only the records of
+     * the active segment are read from its channel, under the lock. A mapping stays readable after its segment is
+     * compacted and deleted, so a read racing a compaction still gets the body.
+     *
+     * @param fileChunk - the chunk
+     * @param buffer - the buffer the body is read into
+     * @return the body length or -1 if the chunk is not stored
+     */
+    @Override
+    public int read(FileChunk fileChunk, byte[] buffer) throws IOException {
+        Location location;
+        ByteBuffer mapping;
+        synchronized (this) {
+            location = getLocation(fileChunk);
+            if (location == null) {
+                return -1;
+            }
+            if (location.segment == activeSegment) {
+                return readFromChannel(location, buffer);
+            }
+            mapping = location.segment.map();
+        }
+
+        ByteBuffer body = mapping.duplicate();
+        body.position((int) location.bodyPosition);
+        body.get(buffer, 0, location.length);
+        return location.length;
+    }
+
+    private int readFromChannel(Location location, byte[] buffer) throws IOException {
+        ByteBuffer body = ByteBuffer.wrap(buffer, 0, location.length);
+        long position = location.bodyPosition;
+        while (body.hasRemaining()) {
+            int read = location.segment.channel.read(body, position);
+            if (read == -1) {
+                break;
+            }
+            position += read;
+        }
+        return body.position();
+    }
+
+    @Override
+    public synchronized long size(FileChunk fileChunk) {
+        Location location = getLocation(fileChunk);
+        return location == null ? -1 : location.length;
+    }
+
+    @Override
+    public synchronized void delete(FileChunk fileChunk) throws IOException {
+        HashMap<Integer, Location> chunks = index.get(fileChunk.getFileId());
+        if (chunks == null) {
+            return;
+        }
+
+        Location location = chunks.remove(fileChunk.getChunkNo());
+        if (location == null) {
+            return;
+        }
+        if (chunks.isEmpty()) {
+            index.remove(fileChunk.getFileId());
+        }
+
+        append(nextSeq++, CHUNK_TOMBSTONE, fileChunk.getFileId(), fileChunk.getChunkNo(), EMPTY_BODY, 0, 0);
+        release(location);
+    }
+
+    /**
+     * Appends a single tombstone for the whole file, whatever the number of its chunks.
+     *
+     * @param fileId - the file id
+     */
+    @Override
+    public synchronized void deleteFile(FileId fileId) throws IOException {
+        HashMap<Integer, Location> chunks = index.remove(fileId);
+        if (chunks == null) {
+            return;
+        }
+
+        append(nextSeq++, FILE_TOMBSTONE, fileId, -1, EMPTY_BODY, 0, 0);
+        for (Location location : chunks.values()) {
+            release(location);
+        }
+    }
+
+    @Override
+    public void deleteIfEmpty(FileId fileId) {
+    }
+
+    @Override
+    public synchronized void close() {
+        for (Segment segment : segments.values()) {
+            try {
+                segment.channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the index from the segments. Every chunk takes its record with the highest sequence number, unless that
+     * record is a tombstone or a later file tombstone deleted the whole file.
+     */
+    private void open() throws IOException {
+        ArrayList<Integer> ids = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get(backupDir), SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                ids.add(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+        Collections.sort(ids);
+
+        HashMap<FileChunk, Location> latest = new HashMap<>();
+        HashMap<FileId, Long> deletedFiles = new HashMap<>();
+        for (int id : ids) {
+            Segment segment = openSegment(id);
+            segments.put(id, segment);
+            nextSegmentId = id + 1;
+
+            RecordReader reader = new RecordReader(segment.channel);
+            Record record;
+            while ((record = reader.next()) != null) {
+                nextSeq = Math.max(nextSeq, record.seq + 1);
+                if (record.type == FILE_TOMBSTONE) {
+                    deletedFiles.merge(record.fileId, record.seq, Math::max);
+                    continue;
+                }
+
+                FileChunk fileChunk = new FileChunk(record.fileId, record.chunkNo);
+                Location previous = latest.get(fileChunk);
+                if (previous == null || previous.seq < record.seq) {
+                    latest.put(fileChunk, new Location(segment, record, reader.position));
+                }
+            }
+
+            segment.size = reader.position;
+            if (segment.size < segment.channel.size()) {
+                UI.printWarning("Truncating the torn end of segment " + id + " at " + segment.size);
+                segment.channel.truncate(segment.size);
+            }
+        }
+
+        for (Map.Entry<FileChunk, Location> entry : latest.entrySet()) {
+            Location location = entry.getValue();
+            if (location.type == CHUNK && location.seq > deletedFiles.getOrDefault(entry.getKey().getFileId(), -1L)) {
+                put(entry.getKey(), location);
+            }
+        }
+
+        if (segments.isEmpty() || segments.lastEntry().getValue().size >= Utils.SEGMENT_SIZE) {
+            roll();
+        } else {
+            activeSegment = segments.lastEntry().getValue();
+        }
+        for (Segment segment : segments.values()) {
+            checkCompaction(segment);
+        }
+    }
+
+    private Segment openSegment(int id) throws IOException {
+        Path path = getSegmentPath(id);
+        return new Segment(id, path, FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE));
+    }
+
+    private Path getSegmentPath(int id) {
+        return Paths.get(backupDir + "/" + SEGMENT_PREFIX + id + SEGMENT_SUFFIX);
+    }
+
+    /**
+     * Seals the active segment and starts a new one.
+     */
+    private void roll() throws IOException {
+        Segment sealed = activeSegment;
+        activeSegment = openSegment(nextSegmentId++);
+        segments.put(activeSegment.id, activeSegment);
+        isDirectoryUnsynced = true;
+
+        if (sealed != null) {
+            checkCompaction(sealed);
+        }
+    }
+
+    /**
+     * Appends a record to the active segment, starting a new segment if it does not fit.
+     *
+     * @return the location of the record
+     */
+    private Location append(long seq, byte type, FileId fileId, int chunkNo, byte[] buffer, int offset, int length) throws IOException {
+        byte[] id = new byte[fileId.hexLength()];
+        fileId.writeHex(id, 0);
+
+        int headerSize = HEADER_SIZE + id.length;
+        if (activeSegment.size > 0 && activeSegment.size + headerSize + length > Utils.SEGMENT_SIZE) {
+            roll();
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(headerSize);
+        header.putInt(0).putLong(seq).put(type).putShort((short) id.length).put(id).putInt(chunkNo).putInt(length);
+        CRC32 crc = new CRC32();
+        crc.update(header.array(), 4, headerSize - 4);
+        crc.update(buffer, offset, length);
+        header.putInt(0, (int) crc.getValue());
+        header.flip();
+
+        ByteBuffer[] record = {header, ByteBuffer.wrap(buffer, offset, length)};
+        FileChannel channel = activeSegment.channel;
+        long position = activeSegment.size;
+        channel.position(position);
+        while (header.hasRemaining() || record[1].hasRemaining()) {
+            channel.write(record);
+        }
+
+        activeSegment.size += headerSize + length;
+        unsyncedSegments.add(activeSegment);
+        return new Location(activeSegment, seq, type, position + headerSize, length, headerSize + length);
+    }
+
+    private Location getLocation(FileChunk fileChunk) {
+        HashMap<Integer, Location> chunks = index.get(fileChunk.getFileId());
+        return chunks == null ? null : chunks.get(fileChunk.getChunkNo());
+    }
+
+    private void put(FileChunk fileChunk, Location location) {
+        Location previous = index.computeIfAbsent(fileChunk.getFileId(), fileId -> new HashMap<>()).put(fileChunk.getChunkNo(), location);
+        location.segment.liveBytes += location.recordSize;
+        if (previous != null) {
+            release(previous);
+        }
+    }
+
+    /**
+     * Marks a record as dead, compacting its segment if it became mostly dead.
+     */
+    private void release(Location location) {
+        location.segment.liveBytes -= location.recordSize;
+        checkCompaction(location.segment);
+    }
+
+    private void checkCompaction(Segment segment) {
+        if (segment == activeSegment || segment.isCompacting || segment.liveBytes >= segment.size * Utils.SEGMENT_COMPACTION_RATIO) {
+            return;
+        }
+
+        segment.isCompacting = true;
+        ioExecutor.execute(() -> compact(segment));
+    }
+
+    /**
+     * Copies the live records of a sealed segment to the end of the log and deletes it. Sealed segments never change,
+     * so they are read without the lock, which is only taken to copy each record.
+     * Tombstones are copied as well while an older segment remains, since they may still hide records in it.
+     * The copies are forced to the disk before the segment is deleted, whatever the durability mode.
+     *
+     * @param segment - the segment
+     */
+    private void compact(Segment segment) {
+        int copiedRecords = 0;
+        try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.READ)) {
+            RecordReader reader = new RecordReader(channel);
+            long position = 0;
+            Record record;
+            while ((record = reader.next()) != null) {
+                if (copy(segment, record, position)) {
+                    copiedRecords++;
+                }
+                position = reader.position;
+            }
+            sync(null);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        synchronized (this) {
+            segments.remove(segment.id);
+            unsyncedSegments.remove(segment);
+            try {
+                segment.channel.close();
+                Files.deleteIfExists(segment.path);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        UI.printOK("Compacted segment " + segment.id + " (" + copiedRecords + " records kept)");
+    }
+
+    private synchronized boolean copy(Segment segment, Record record, long position) throws IOException {
+        if (record.type == CHUNK) {
+            FileChunk fileChunk = new FileChunk(record.fileId, record.chunkNo);
+            Location location = getLocation(fileChunk);
+            if (location == null || location.segment != segment || location.bodyPosition - location.recordSize + location.length != position) {
+                return false;
+            }
+
+            put(fileChunk, append(record.seq, CHUNK, record.fileId, record.chunkNo, record.body, 0, record.length));
+            return true;
+        }
+
+        if (segments.firstKey() == segment.id) {
+            return false;
+        }
+        append(record.seq, record.type, record.fileId, record.chunkNo, EMPTY_BODY, 0, 0);
+        return true;
+    }
+
+    /**
+     * A segment file.
+     */
+    private static class Segment {
+        private int id;
+        private Path path;
+        private FileChannel channel;
+        private long size = 0;
+        private long liveBytes = 0;
+        private boolean isCompacting = false;
+        private MappedByteBuffer mapping = null;
+
+        Segment(int id, Path path, FileChannel channel) {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+        }
+
+        /**
+         * Maps the segment into memory, the first time it is read after being sealed.
+         *
+         * @return the read-only mapping
+         */
+        MappedByteBuffer map() throws IOException {
+            if (mapping == null) {
+                mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            return mapping;
+        }
+    }
+
+    /**
+     * Where a record is in the log.
+     */
+    private static class Location {
+        private Segment segment;
+        private long seq;
+        private byte type;
+        private long bodyPosition;
+        private int length;
+        private int recordSize;
+
+        Location(Segment segment, long seq, byte type, long bodyPosition, int length, int recordSize) {
+            this.segment = segment;
+            this.seq = seq;
+            this.type = type;
+            this.bodyPosition = bodyPosition;
+            this.length = length;
+            this.recordSize = recordSize;
+        }
+
+        Location(Segment segment, Record record, long end) {
+            this(segment, record.seq, record.type, end - record.length, record.length, record.size);
+        }
+    }
+
+    /**
+     * A record read from a segment. The body is only valid until the next record is read.
+     */
+    private static class Record {
+        private long seq;
+        private byte type;
+        private FileId fileId;
+        private int chunkNo;
+        private byte[] body;
+        private int length;
+        private int size;
+    }
+
+    /**
+     * Reads the records of a segment in order, stopping at the end of the segment or at the first invalid record.
+     */
+    private static class RecordReader {
+        private DataInputStream in;
+        private long position = 0;
+        private byte[] header = new byte[PREFIX_SIZE + MAX_FILE_ID_LENGTH + 8];
+        private Record record = new Record();
+        private CRC32 crc = new CRC32();
+
+        RecordReader(FileChannel channel) throws IOException {
+            channel.position(0);
+            in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 20));
+            record.body = new byte[Utils.MAX_CHUNK_SIZE];
+        }
+
+        /**
+         * @return the next record or null if there is none
+         */
+        Record next() throws IOException {
+            try {
+                in.readFully(header, 0, PREFIX_SIZE);
+                ByteBuffer prefix = ByteBuffer.wrap(header, 0, PREFIX_SIZE);
+                int expectedCrc = prefix.getInt();
+                record.seq = prefix.getLong();
+                record.type = prefix.get();
+                int idLength = prefix.getShort();
+                if (idLength <= 0 || idLength > MAX_FILE_ID_LENGTH || record.type < CHUNK || record.type > FILE_TOMBSTONE) {
+                    return null;
+                }
+
+                in.readFully(header, PREFIX_SIZE, idLength + 8);
+                ByteBuffer rest = ByteBuffer.wrap(header, PREFIX_SIZE + idLength, 8);
+                record.chunkNo = rest.getInt();
+                record.length = rest.getInt();
+                if (record.length < 0 || record.length > record.body.length) {
+                    return null;
+                }
+                in.readFully(record.body, 0, record.length);
+
+                crc.reset();
+                crc.update(header, 4, PREFIX_SIZE + idLength + 4);
+                crc.update(record.body, 0, record.length);
+                if ((int) crc.getValue() != expectedCrc) {
+                    return null;
+                }
+
+                record.fileId = FileId.fromHex(header, PREFIX_SIZE, PREFIX_SIZE + idLength);
+                record.size = PREFIX_SIZE + idLength + 8 + record.length;
+                position += record.size;
+                return record;
+            } catch (EOFException | IllegalArgumentException e) {
+                return null;
+            }
+        }
+    }
+}
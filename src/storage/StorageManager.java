@@ -2,38 +2,153 @@ package storage;
 
 import message.Message;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 import user_interface.UI;
+import utils.BufferPool;
 import utils.Utils;
 
 public class StorageManager implements Serializable {
 
-    private static final long serialVersionUID = 1L;
+    private static final long serialVersionUID = 2L;
     private String version;
     private int peerId;
-    private long usedSpace;
+    private AtomicLong usedSpace;
     private long maxReservedSpace;
 
     private String backupDir;
     private String restoreDir;
 
+    private transient ExecutorService ioExecutor;
+    private transient ExecutorService readExecutor;
+    private transient ChunkStore chunkStore;
+    private transient ChunkCache chunkCache;
+    private transient String storageBackend;
+    private transient ConcurrentHashMap<FileChunk, Long> pendingDeletions;
+    private transient Set<FileChunk> heldDeletions;
+    private transient Object[] fileLocks;
+    private transient AtomicLong reservedSpace;
+    private transient ConcurrentHashMap<FileChunk, Long> reservations;
+    private transient ConcurrentHashMap<FileChunk, PendingWrite> pendingWrites;
+    private transient LinkedBlockingQueue<PendingWrite> writeQueue;
+    private transient String durabilityMode;
+
     public StorageManager(String version, int peerId) {
         this.version = version;
         this.peerId = peerId;
-        usedSpace = 0;
+        usedSpace = new AtomicLong(0);
         maxReservedSpace = Utils.MAX_STORAGE_SPACE;
 
         backupDir = "peers/peer" + peerId + "/backup";
         restoreDir = "peers/peer" + peerId + "/restore";
         initDirectory(backupDir);
         initDirectory(restoreDir);
+        initTransientState();
+    }
+
+    private void readObject(ObjectInputStream stream) throws IOException, ClassNotFoundException {
+        stream.defaultReadObject();
+        initTransientState();
+    }
+
+    private void initTransientState() {
+        ioExecutor = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "storage-io");
+            thread.setDaemon(true);
+            return thread;
+        });
+        readExecutor = Executors.newFixedThreadPool(Utils.STORAGE_READ_THREADS, task -> {
+            Thread thread = new Thread(task, "storage-read");
+            thread.setDaemon(true);
+            return thread;
+        });
+        pendingDeletions = new ConcurrentHashMap<>();
+        heldDeletions = ConcurrentHashMap.newKeySet();
+        reservedSpace = new AtomicLong(0);
+        reservations = new ConcurrentHashMap<>();
+        fileLocks = new Object[Utils.STORAGE_LOCK_STRIPES];
+        for (int i = 0; i < fileLocks.length; i++) {
+            fileLocks[i] = new Object();
+        }
+        chunkStore = createChunkStore();
+        chunkCache = new ChunkCache(Utils.CHUNK_CACHE_SIZE, Utils.CHUNK_CACHE_SEGMENTS);
+
+        durabilityMode = Utils.DURABILITY_MODE;
+        if (!durabilityMode.equals(Utils.NO_DURABILITY) && !durabilityMode.equals(Utils.BATCH_DURABILITY) && !durabilityMode.equals(Utils.CHUNK_DURABILITY)) {
+            UI.printWarning("Unknown durability mode " + durabilityMode + ", using " + Utils.BATCH_DURABILITY);
+            durabilityMode = Utils.BATCH_DURABILITY;
+        }
+        pendingWrites = new ConcurrentHashMap<>();
+        writeQueue = new LinkedBlockingQueue<>();
+        Thread writer = new Thread(this::writeChunks, "storage-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public String getDurabilityMode() {
+        return durabilityMode;
+    }
+
+    /**
+     * Opens the chunk store selected by STORAGE_BACKEND. The chunks kept by the other backend are not seen.
+     *
+     * @return the chunk store
+     */
+    private ChunkStore createChunkStore() {
+        if (Utils.STORAGE_BACKEND.equals(Utils.SEGMENT_STORAGE)) {
+            try {
+                ChunkStore segmentStore = new SegmentChunkStore(backupDir, ioExecutor);
+                storageBackend = Utils.SEGMENT_STORAGE;
+                return segmentStore;
+            } catch (IOException e) {
+                e.printStackTrace();
+                UI.printWarning("Couldn't open the segment store, falling back to one file per chunk");
+            }
+        } else if (!Utils.STORAGE_BACKEND.equals(Utils.FILE_STORAGE)) {
+            UI.printWarning("Unknown storage backend " + Utils.STORAGE_BACKEND + ", using one file per chunk");
+        }
+
+        storageBackend = Utils.FILE_STORAGE;
+        return new FileChunkStore(backupDir, ioExecutor);
+    }
+
+    public ChunkCache getChunkCache() {
+        return chunkCache;
+    }
+
+    public String getStorageBackend() {
+        return storageBackend;
+    }
+
+    /**
+     * Retrieves the lock of the stripe of a file. The chunks of different files are stored and deleted in parallel,
+     * unless their files share a stripe.
+     *
+     * @param fileId - the file id
+     * @return the lock
+     */
+    private Object getFileLock(FileId fileId) {
+        return fileLocks[Math.floorMod(fileId.hashCode(), fileLocks.length)];
     }
 
     /**
@@ -52,109 +167,379 @@ public class StorageManager implements Serializable {
     }
 
     /**
-     * Saves the chunk locally if there is enough free space.
+     * Saves the chunk locally if there is enough free space, committing the space reserved for it. The space is
+     * reserved now if it was not before.
+     * The chunk is queued for the storage writer thread, which writes the queued chunks in batches and makes each
+     * batch durable according to the durability mode. Saving a chunk that is already being saved returns the same
+     * future; if that chunk was already written, its space is already used, so the reservation of the caller is given
+     * back. Once the future completes with true, the chunk must be confirmed with confirmChunk, on the shard of its
+     * file, before it is considered stored.
      *
-     * @param message - the chunk message
-     * @return true if successful, false otherwise
+     * @param message - the chunk message, retained until the chunk is written
+     * @return a future completed with true once the chunk is durable, or false if it could not be saved
      */
-    public synchronized boolean saveChunk(Message message) {
-        if (usedSpace + message.getBody().length > maxReservedSpace)
-            return false;
+    public CompletableFuture<Boolean> saveChunk(Message message) {
+        FileChunk fileChunk = message.getFileChunk();
+        PendingWrite write = new PendingWrite(message);
+        PendingWrite pendingWrite = pendingWrites.putIfAbsent(fileChunk, write);
+        if (pendingWrite != null) {
+            synchronized (getFileLock(fileChunk.getFileId())) {
+                if (pendingWrite.isWritten) {
+                    releaseSpace(fileChunk);
+                }
+            }
+            return pendingWrite.future;
+        }
 
-        String fileId = message.getFileId();
-        int chunkNo = message.getChunkNo();
+        if (!reserveSpace(fileChunk, message.getBodyLength())) {
+            pendingWrites.remove(fileChunk, write);
+            write.future.complete(false);
+            return write.future;
+        }
 
-        try {
-            Path fileDir = Paths.get(backupDir + "/" + fileId);
-            if (!Files.exists(fileDir)) {
-                Files.createDirectories(fileDir);
+        message.retain();
+        writeQueue.offer(write);
+        return write.future;
+    }
+
+    /**
+     * Confirms that a chunk whose save completed is stored, unless its file was deleted meanwhile.
+     * Must be called on the shard of the file, where its deletion also runs.
+     *
+     * @param fileChunk - the chunk
+     * @return true if the chunk is stored, false otherwise
+     */
+    public boolean confirmChunk(FileChunk fileChunk) {
+        synchronized (getFileLock(fileChunk.getFileId())) {
+            PendingWrite write = pendingWrites.remove(fileChunk);
+            return write != null && write.isWritten && !write.isDeleted;
+        }
+    }
+
+    /**
+     * Runs the storage writer thread. Takes every chunk queued, up to WRITE_BATCH_SIZE, writes them and then makes them
+     * durable: each chunk right after its write with the chunk durability mode, all of them with a single sync with the
+     * batch mode, or not at all with the none mode. Only then are their futures completed.
+     */
+    private void writeChunks() {
+        ArrayList<PendingWrite> batch = new ArrayList<>();
+        ArrayList<PendingWrite> written = new ArrayList<>();
+
+        while (true) {
+            try {
+                batch.add(writeQueue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            writeQueue.drainTo(batch, Utils.WRITE_BATCH_SIZE - 1);
+
+            for (PendingWrite write : batch) {
+                if (writeChunk(write)) {
+                    written.add(write);
+                    if (durabilityMode.equals(Utils.CHUNK_DURABILITY)) {
+                        sync(Collections.singletonList(write));
+                    }
+                }
+            }
+            if (durabilityMode.equals(Utils.BATCH_DURABILITY) && !written.isEmpty()) {
+                sync(written);
             }
 
-            Path chunkPath = Paths.get(backupDir + "/" + fileId + "/" + chunkNo);
-            if (!Files.exists(chunkPath)) {
-                Files.createFile(chunkPath);
+            for (PendingWrite write : batch) {
+                completeWrite(write);
             }
-            Files.write(chunkPath, message.getBody());
-        } catch (IOException e) {
-            e.printStackTrace();
+            batch.clear();
+            written.clear();
         }
+    }
 
-        increaseUsedSpace(message.getBody().length);
+    private boolean writeChunk(PendingWrite write) {
+        Message message = write.message;
+        FileChunk fileChunk = message.getFileChunk();
 
-        UI.printOK("Chunk " + chunkNo + " (from file " + fileId + ") saved successfully");
+        synchronized (getFileLock(fileChunk.getFileId())) {
+            if (write.isCancelled) {
+                releaseSpace(fileChunk);
+                return false;
+            }
+            pendingDeletions.remove(fileChunk);
+            heldDeletions.remove(fileChunk);
+
+            try {
+                chunkStore.write(fileChunk, message.getBodyArray(), message.getBodyOffset(), message.getBodyLength());
+                chunkCache.invalidate(fileChunk);
+            } catch (IOException e) {
+                e.printStackTrace();
+                releaseSpace(fileChunk);
+                return false;
+            }
+            commitSpace(fileChunk, message.getBodyLength());
+            write.isWritten = true;
+        }
         return true;
     }
 
     /**
-     * Deletes the chunk provided if it is stored locally.
-     *
-     * @param fileId  - the file id
-     * @param chunkNo - the chunk number
+     * Forces written chunks to the disk. If that fails, they are deleted, since they may not survive a power cut.
      */
-    public synchronized void deleteChunk(String fileId, int chunkNo) {
+    private void sync(List<PendingWrite> writes) {
+        ArrayList<FileChunk> fileChunks = new ArrayList<>();
+        for (PendingWrite write : writes) {
+            fileChunks.add(write.message.getFileChunk());
+        }
+
         try {
-            Path path = Paths.get(backupDir + "/" + fileId + "/" + chunkNo);
-            if (Files.exists(path)) {
-                decreaseUsedSpace(Files.size(path));
-                Files.delete(path);
-            }
+            chunkStore.sync(fileChunks);
         } catch (IOException e) {
             e.printStackTrace();
+            for (PendingWrite write : writes) {
+                undoWrite(write);
+            }
         }
+    }
+
+    private void undoWrite(PendingWrite write) {
+        FileChunk fileChunk = write.message.getFileChunk();
+        synchronized (getFileLock(fileChunk.getFileId())) {
+            if (!write.isWritten || write.isDeleted) {
+                return;
+            }
+            write.isWritten = false;
 
-        UI.printOK("Chunk " + chunkNo + " (from file " + fileId + ") deleted successfully");
+            try {
+                chunkStore.delete(fileChunk);
+                chunkCache.invalidate(fileChunk);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            decreaseUsedSpace(write.message.getBodyLength());
+        }
     }
 
-    public synchronized void deleteFileFolder(String fileId) {
-        try {
-            Path path = Paths.get(backupDir + "/" + fileId);
-            if (Files.exists(path)) {
-                Files.delete(path);
+    private void completeWrite(PendingWrite write) {
+        Message message = write.message;
+        FileChunk fileChunk = message.getFileChunk();
+
+        boolean isSaved;
+        synchronized (getFileLock(fileChunk.getFileId())) {
+            isSaved = write.isWritten && !write.isDeleted;
+            if (!isSaved) {
+                pendingWrites.remove(fileChunk, write);
+            }
+        }
+
+        if (isSaved) {
+            UI.printOK("Chunk " + message.getChunkNo() + " (from file " + message.getFileId() + ") saved successfully");
+        }
+        message.release();
+        write.future.complete(isSaved);
+    }
+
+    /**
+     * Schedules the deletion of a chunk stored locally, to be done by the next deletion batch. Its space is freed
+     * right away. If the chunk is saved again before the batch runs, its deletion is cancelled.
+     *
+     * @param fileChunk - the chunk
+     * @param size - the chunk size
+     */
+    public void scheduleChunkDeletion(FileChunk fileChunk, long size) {
+        if (pendingDeletions.putIfAbsent(fileChunk, size) == null) {
+            decreaseUsedSpace(size);
+        }
+    }
+
+    /**
+     * Keeps a chunk scheduled for deletion out of the deletion batches until releaseChunkDeletion is called, so that it
+     * can still be read, once, to be backed up again. Must be called before the chunk is scheduled for deletion.
+     *
+     * @param fileChunk - the chunk
+     */
+    public void holdChunkDeletion(FileChunk fileChunk) {
+        heldDeletions.add(fileChunk);
+    }
+
+    /**
+     * Deletes a chunk whose deletion was held, on the storage I/O thread, unless it was saved again meanwhile.
+     *
+     * @param fileChunk - the chunk
+     */
+    public void releaseChunkDeletion(FileChunk fileChunk) {
+        if (!heldDeletions.remove(fileChunk)) {
+            return;
+        }
+
+        ioExecutor.execute(() -> {
+            deleteScheduledChunk(fileChunk);
+            deleteEmptyFileFolder(fileChunk.getFileId());
+        });
+    }
+
+    /**
+     * Deletes the chunks scheduled for deletion in a background batch, on the storage I/O thread, followed by the
+     * folders of their files that were left empty. Held deletions are left for later.
+     *
+     * @return a future completed when the batch ends
+     */
+    public CompletableFuture<Void> deleteScheduledChunks() {
+        return CompletableFuture.runAsync(() -> {
+            ArrayList<FileChunk> chunks = new ArrayList<>(pendingDeletions.keySet());
+            chunks.removeIf(heldDeletions::contains);
+
+            HashSet<FileId> files = new HashSet<>();
+            for (FileChunk fileChunk : chunks) {
+                files.add(fileChunk.getFileId());
+                deleteScheduledChunk(fileChunk);
+            }
+            for (FileId fileId : files) {
+                deleteEmptyFileFolder(fileId);
+            }
+
+            UI.printOK("Deleted " + chunks.size() + " reclaimed chunks");
+        }, ioExecutor);
+    }
+
+    private void deleteScheduledChunk(FileChunk fileChunk) {
+        synchronized (getFileLock(fileChunk.getFileId())) {
+            if (pendingDeletions.remove(fileChunk) == null) {
+                return;
+            }
+
+            try {
+                chunkStore.delete(fileChunk);
+                chunkCache.invalidate(fileChunk);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void deleteEmptyFileFolder(FileId fileId) {
+        synchronized (getFileLock(fileId)) {
+            try {
+                chunkStore.deleteIfEmpty(fileId);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Deletes every chunk of a file without reading them. The chunk store deletes them in the background, so that the
+     * file can be backed up again at once. The used space is adjusted from the sizes recorded in the metadata.
+     * Chunks of the file still being saved are cancelled or, if already written, deleted as well.
+     *
+     * @param fileId - the file id
+     * @param size - the total size of the chunks of the file that are stored
+     */
+    public void deleteFile(FileId fileId, long size) {
+        synchronized (getFileLock(fileId)) {
+            for (PendingWrite write : pendingWrites.values()) {
+                if (!write.message.getFileId().equals(fileId) || write.isDeleted) {
+                    continue;
+                }
+                if (write.isWritten) {
+                    size += write.message.getBodyLength();
+                    write.isDeleted = true;
+                } else {
+                    write.isCancelled = true;
+                }
+            }
+
+            decreaseUsedSpace(size);
+            pendingDeletions.keySet().removeIf(fileChunk -> fileChunk.getFileId().equals(fileId));
+            heldDeletions.removeIf(fileChunk -> fileChunk.getFileId().equals(fileId));
+
+            try {
+                chunkStore.deleteFile(fileId);
+                chunkCache.invalidate(fileId);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
             }
-        } catch (IOException e) {
-            e.printStackTrace();
         }
 
         UI.printOK("File " + fileId + " deleted successfully");
     }
 
     /**
-     * Loads a chunk stored locally.
+     * Loads a chunk stored locally, from the chunk cache if it was read recently.
+     * The body is read into a buffer borrowed from the BufferPool, so the returned message must be released once it is
+     * no longer used. Does not take the storage lock: the chunk store serves concurrent reads.
      *
-     * @param fileId  - the file id
-     * @param chunkNo - the chunk number
+     * @param fileChunk - the chunk
      * @return The chunk message
      */
-    public synchronized Message loadChunk(String fileId, int chunkNo) {
-        byte[] body = null;
+    private Message loadChunk(FileChunk fileChunk) {
+        FileId fileId = fileChunk.getFileId();
+        int chunkNo = fileChunk.getChunkNo();
+        Message message = new Message(version, peerId, fileId, null, Message.MessageType.CHUNK, chunkNo);
+        byte[] buffer = BufferPool.acquire();
+
+        int length = chunkCache.get(fileChunk, buffer);
+        if (length >= 0) {
+            message.setPooledBody(buffer, length);
+            return message;
+        }
+
         try {
-            Path chunkPath = Paths.get(this.backupDir + "/" + fileId + "/" + chunkNo);
-            body = Files.readAllBytes(chunkPath);
+            long stamp = chunkCache.getStamp(fileChunk);
+            length = chunkStore.read(fileChunk, buffer);
+            if (length < 0) {
+                BufferPool.release(buffer);
+                UI.printError("Chunk " + chunkNo + " (from file " + fileId + ") is not stored");
+                return message;
+            }
+            chunkCache.put(fileChunk, buffer, length, stamp);
+            message.setPooledBody(buffer, length);
         } catch (IOException e) {
+            BufferPool.release(buffer);
             e.printStackTrace();
         }
 
-        return new Message(version, peerId, fileId, body, Message.MessageType.CHUNK, chunkNo);
+        return message;
     }
 
     /**
-     * Saves a file locally
+     * Loads a chunk stored locally like loadChunk, on the storage read threads, so that the state shards never wait
+     * for the disk. The reads do not queue behind the deletions and compactions of the storage I/O thread.
+     *
+     * @param fileChunk - the chunk
+     * @return a future completed with the chunk message, which must be released
+     */
+    public CompletableFuture<Message> loadChunkAsync(FileChunk fileChunk) {
+        return CompletableFuture.supplyAsync(() -> loadChunk(fileChunk), readExecutor);
+    }
+
+    /**
+     * Writes the whole buffer to the channel.
+     */
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Saves a file locally, on the storage I/O thread.
      *
      * @param filePath - the original file path
+     * @param fileChunks - the chunks of the file, in order
+     * @return a future completed when the file is written
      */
-    public synchronized void saveFile(String filePath, ConcurrentSkipListSet<Message> fileChunks) {
-        byte[] fileData = mergeChunks(fileChunks);
-        try {
+    public CompletableFuture<Void> saveFile(String filePath, ConcurrentSkipListSet<Message> fileChunks) {
+        return CompletableFuture.runAsync(() -> {
             Path path = Paths.get(this.restoreDir + "/" + cropFilesDir(filePath));
-            if (!Files.exists(path)) {
-                Files.createFile(path);
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                for (Message chunk : fileChunks) {
+                    writeFully(channel, ByteBuffer.wrap(chunk.getBodyArray(), chunk.getBodyOffset(), chunk.getBodyLength()));
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
             }
-            Files.write(path, fileData);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
 
-        UI.printOK("File " + filePath + " restored successfully");
+            UI.printOK("File " + filePath + " restored successfully");
+        }, ioExecutor);
     }
 
     /**
@@ -168,38 +553,115 @@ public class StorageManager implements Serializable {
         return filePath.substring(index);
     }
 
+    public long getUsedSpace() {
+        return usedSpace.get();
+    }
+
     /**
-     * Merges all the files from a given file.
-     *
-     * @return the file data
+     * @param fileChunk - the chunk
+     * @return true if the chunk is in the chunk store
      */
-    private byte[] mergeChunks(ConcurrentSkipListSet<Message> fileChunks) {
-        ByteArrayOutputStream stream = new ByteArrayOutputStream();
-
+    public boolean hasChunk(FileChunk fileChunk) {
         try {
-            for (Message chunk : fileChunks) {
-                stream.write(chunk.getBody());
-            }
+            return chunkStore.size(fileChunk) >= 0;
         } catch (IOException e) {
             e.printStackTrace();
+            return false;
         }
-
-        return stream.toByteArray();
     }
 
-    public long getUsedSpace() {
-        return usedSpace;
+    /**
+     * Sets the used space to the size of the chunks stored, once the peer state is recovered.
+     *
+     * @param usedSpace - the size of the chunks stored
+     */
+    public void recoverUsedSpace(long usedSpace) {
+        this.usedSpace.set(usedSpace);
     }
 
+    /**
+     * @return the space that is neither used nor reserved for chunks being received
+     */
     public long getAvailableSpace() {
-        return maxReservedSpace - usedSpace;
+        return maxReservedSpace - usedSpace.get() - reservedSpace.get();
+    }
+
+    /**
+     * @return the space reserved for chunks being received
+     */
+    public long getReservedSpace() {
+        return reservedSpace.get();
+    }
+
+    /**
+     * Reserves space for a chunk about to be stored, if there is enough free space. The reservation is taken with a
+     * compare-and-set, so concurrent reservations never over-commit the disk. It is either committed, once the chunk is
+     * saved, or released. Reserving a chunk that already has a reservation does nothing: the reservation is claimed
+     * before the space is added, so two reservations of the same chunk never both count against the limit.
+     *
+     * @param fileChunk - the chunk
+     * @param amount - the chunk size
+     * @return true if the space is reserved, false otherwise
+     */
+    public boolean reserveSpace(FileChunk fileChunk, long amount) {
+        if (reservations.putIfAbsent(fileChunk, amount) != null) {
+            return true;
+        }
+
+        while (true) {
+            long reserved = reservedSpace.get();
+            if (usedSpace.get() + reserved + amount > maxReservedSpace) {
+                if (!reservations.remove(fileChunk, amount)) {
+                    reservedSpace.addAndGet(amount);
+                }
+                return false;
+            }
+            if (reservedSpace.compareAndSet(reserved, reserved + amount)) {
+                return true;
+            }
+        }
     }
 
-    private void increaseUsedSpace(long amount) {
-        this.usedSpace += amount;
+    /**
+     * Gives back the space reserved for a chunk that is not going to be stored, if any.
+     *
+     * @param fileChunk - the chunk
+     */
+    public void releaseSpace(FileChunk fileChunk) {
+        Long amount = reservations.remove(fileChunk);
+        if (amount != null) {
+            reservedSpace.addAndGet(-amount);
+        }
+    }
+
+    /**
+     * Turns the reservation of a saved chunk into used space. The used space grows before the reservation is dropped,
+     * so the space of the chunk is never seen as free in between.
+     *
+     * @param fileChunk - the chunk
+     * @param amount - the chunk size
+     */
+    private void commitSpace(FileChunk fileChunk, long amount) {
+        usedSpace.addAndGet(amount);
+        releaseSpace(fileChunk);
     }
 
     private void decreaseUsedSpace(long amount) {
-        this.usedSpace -= amount;
+        usedSpace.addAndGet(-amount);
+    }
+
+    /**
+     * A chunk being saved. Its flags are only changed under the lock of its file.
+     */
+    private static class PendingWrite {
+        private Message message;
+        private CompletableFuture<Boolean> future = new CompletableFuture<>();
+        private boolean isWritten = false;
+        private boolean isCancelled = false;
+        private boolean isDeleted = false;
+
+        PendingWrite(Message message) {
+            this.message = message;
+        }
     }
 }
@@ -0,0 +1,54 @@
+package utils;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static utils.Utils.MAX_MESSAGE_SIZE;
+import static utils.Utils.MAX_POOLED_BUFFERS;
+
+public class BufferPool {
+
+    /**
+     * Size of every pooled buffer. Large enough for a whole datagram, that is, a chunk plus its header.
+     */
+    public static final int BUFFER_SIZE = MAX_MESSAGE_SIZE;
+
+    private static final ConcurrentLinkedQueue<byte[]> buffers = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooledBuffers = new AtomicInteger(0);
+
+    private BufferPool() {
+    }
+
+    /**
+     * Borrows a buffer from the pool, allocating a new one if the pool is empty.
+     * The buffer must be handed back with release() once it is no longer used.
+     *
+     * @return the buffer
+     */
+    public static byte[] acquire() {
+        byte[] buffer = buffers.poll();
+        if (buffer == null) {
+            return new byte[BUFFER_SIZE];
+        }
+
+        pooledBuffers.decrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. Buffers beyond the pool capacity are left to the garbage collector.
+     *
+     * @param buffer - the buffer to be returned
+     */
+    public static void release(byte[] buffer) {
+        if (buffer == null || buffer.length != BUFFER_SIZE) {
+            return;
+        }
+
+        if (pooledBuffers.incrementAndGet() > MAX_POOLED_BUFFERS) {
+            pooledBuffers.decrementAndGet();
+            return;
+        }
+        buffers.offer(buffer);
+    }
+}
@@ -0,0 +1,97 @@
+package utils;
+
+import user_interface.UI;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class Scheduler {
+
+    private ExecutorService workers;
+    private String executionMode;
+    private TimerWheel timerWheel;
+
+    /**
+     * Creates the scheduler shared by every component of a peer: one sized worker executor, fed directly by submitted
+     * tasks and by a hashed timer wheel for delayed ones.
+     *
+     * @param threads - the number of worker threads, in pooled execution mode
+     */
+    public Scheduler(int threads) {
+        workers = createWorkers(threads);
+        timerWheel = new TimerWheel(workers, Utils.TIMER_TICK, Utils.TIMER_WHEEL_SIZE);
+
+        Thread ticker = new Thread(timerWheel, "timer-wheel");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    /**
+     * Creates the workers for the configured execution mode. In virtual mode every task runs on its own virtual thread,
+     * so tasks blocked on file or socket I/O never exhaust the workers. If the runtime has no virtual threads, falls back
+     * to the pooled mode.
+     *
+     * @param threads - the number of worker threads, in pooled execution mode
+     * @return the workers
+     */
+    private ExecutorService createWorkers(int threads) {
+        if (Utils.EXECUTION_MODE.equals(Utils.VIRTUAL_EXECUTION)) {
+            try {
+                ExecutorService virtualWorkers = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                executionMode = Utils.VIRTUAL_EXECUTION;
+                return virtualWorkers;
+            } catch (ReflectiveOperationException e) {
+                UI.printWarning("Virtual threads are not supported by this runtime, falling back to " + threads + " pooled threads");
+            }
+        } else if (!Utils.EXECUTION_MODE.equals(Utils.POOLED_EXECUTION)) {
+            UI.printWarning("Unknown execution mode " + Utils.EXECUTION_MODE + ", using " + threads + " pooled threads");
+        }
+
+        executionMode = Utils.POOLED_EXECUTION;
+        return Executors.newFixedThreadPool(threads);
+    }
+
+    /**
+     * @return the execution mode in use, which is either pooled or virtual
+     */
+    public String getExecutionMode() {
+        return executionMode;
+    }
+
+    /**
+     * Runs a task on the workers.
+     *
+     * @param task - the task
+     */
+    public void submit(Runnable task) {
+        workers.execute(task);
+    }
+
+    /**
+     * Runs a task on the workers after a delay.
+     *
+     * @param task - the task
+     * @param delay - the delay, in milliseconds
+     * @return the timeout, which can be cancelled
+     */
+    public TimerWheel.Timeout schedule(Runnable task, long delay) {
+        return timerWheel.schedule(task, delay);
+    }
+
+    /**
+     * Runs a task periodically. The next run is scheduled when the previous one ends, so runs never overlap.
+     *
+     * @param task - the task
+     * @param initialDelay - the delay before the first run, in milliseconds
+     * @param period - the delay between runs, in milliseconds
+     */
+    public void scheduleAtFixedRate(Runnable task, long initialDelay, long period) {
+        timerWheel.schedule(() -> {
+            try {
+                task.run();
+            } finally {
+                scheduleAtFixedRate(task, period, period);
+            }
+        }, initialDelay);
+    }
+}
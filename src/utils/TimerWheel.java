@@ -0,0 +1,141 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+public class TimerWheel implements Runnable {
+
+    private final long tickDuration;
+    private final int mask;
+    private final ArrayList<ArrayList<Timeout>> buckets;
+    private final ConcurrentLinkedQueue<Timeout> newTimeouts = new ConcurrentLinkedQueue<>();
+    private final Executor executor;
+    private final long startTime;
+    private long tick = 0;
+
+    /**
+     * Creates a hashed timer wheel. A single ticker thread advances the wheel and hands expired tasks to the executor,
+     * so pending delays cost no thread and scheduling is O(1).
+     *
+     * @param executor - the executor running the expired tasks
+     * @param tickMillis - the duration of a tick, which is the timer resolution
+     * @param wheelSize - the number of buckets, rounded up to a power of two
+     */
+    public TimerWheel(Executor executor, long tickMillis, int wheelSize) {
+        this.executor = executor;
+        this.tickDuration = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+
+        int size = Integer.highestOneBit(Math.max(wheelSize - 1, 1)) << 1;
+        this.mask = size - 1;
+        this.buckets = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            buckets.add(new ArrayList<>());
+        }
+
+        this.startTime = System.nanoTime();
+    }
+
+    /**
+     * Schedules a task to be run after a delay. Any thread may schedule: the timeout is only queued and the ticker
+     * thread places it in its bucket on the next tick.
+     *
+     * @param task - the task
+     * @param delay - the delay, in milliseconds
+     * @return the timeout, which can be cancelled
+     */
+    public Timeout schedule(Runnable task, long delay) {
+        long deadline = System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(Math.max(delay, 0));
+        Timeout timeout = new Timeout(task, deadline);
+        newTimeouts.offer(timeout);
+        return timeout;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            long deadline = tickDuration * (tick + 1);
+            waitForTick(deadline);
+
+            transferTimeouts();
+            expireTimeouts(buckets.get((int) (tick & mask)));
+            tick++;
+        }
+    }
+
+    private void waitForTick(long deadline) {
+        long sleepTime = startTime + deadline - System.nanoTime();
+        if (sleepTime <= 0) {
+            return;
+        }
+
+        try {
+            Thread.sleep(TimeUnit.NANOSECONDS.toMillis(sleepTime + TimeUnit.MILLISECONDS.toNanos(1) - 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Places the newly scheduled timeouts in the bucket of the tick they expire on, counting how many whole turns of the
+     * wheel they must wait. Timeouts already due go into the current bucket.
+     */
+    private void transferTimeouts() {
+        Timeout timeout;
+        while ((timeout = newTimeouts.poll()) != null) {
+            if (timeout.isCancelled()) {
+                continue;
+            }
+
+            long expiryTick = timeout.deadline / tickDuration;
+            timeout.remainingRounds = (expiryTick - tick) / buckets.size();
+            buckets.get((int) (Math.max(expiryTick, tick) & mask)).add(timeout);
+        }
+    }
+
+    private void expireTimeouts(ArrayList<Timeout> bucket) {
+        int i = 0;
+        while (i < bucket.size()) {
+            Timeout timeout = bucket.get(i);
+            if (timeout.isCancelled() || timeout.remainingRounds <= 0) {
+                int last = bucket.size() - 1;
+                bucket.set(i, bucket.get(last));
+                bucket.remove(last);
+
+                if (!timeout.isCancelled()) {
+                    executor.execute(timeout.task);
+                }
+            } else {
+                timeout.remainingRounds--;
+                i++;
+            }
+        }
+    }
+
+    /**
+     * A task scheduled on the wheel.
+     */
+    public static final class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private long remainingRounds;
+        private volatile boolean isCancelled = false;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels the task. It is dropped from the wheel when its bucket is next visited.
+         */
+        public void cancel() {
+            isCancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return isCancelled;
+        }
+    }
+}
@@ -6,22 +6,65 @@ import java.security.NoSuchAlgorithmException;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import storage.FileId;
 import user_interface.UI;
 
 public class Utils {
 
     public static final int MAX_MESSAGE_SIZE = 65000;
-    public static final int MAX_THREADS = 50;
+    public static final int WORKER_THREADS = Math.max(8, 4 * Runtime.getRuntime().availableProcessors());
+    public static final String POOLED_EXECUTION = "pooled";
+    public static final String VIRTUAL_EXECUTION = "virtual";
+    public static String EXECUTION_MODE = System.getProperty("peer.execution", POOLED_EXECUTION);
+    public static final int STATE_SHARDS = Runtime.getRuntime().availableProcessors();
+    public static int INGRESS_CONTROL_CAPACITY = 1024;
+    public static int INGRESS_RESTORE_CAPACITY = 256;
+    public static int INGRESS_BULK_CAPACITY = 64;
+    public static int INGRESS_MAX_DEFERRALS = 3;
+    public static int INGRESS_DEFER_DELAY = 200;
+    public static long TIMER_TICK = 10;
+    public static int TIMER_WHEEL_SIZE = 512;
+    public static final int MAX_POOLED_BUFFERS = 512;
     public static int MAX_CHUNK_SIZE = 64000;
+    public static final int MAX_CHUNKS = 1000000;
     public static int MAX_PUTCHUNK_TRIES = 5;
+    public static int BACKUP_WINDOW_SIZE = 128;
+    public static long INITIAL_RTO = 500;
+    public static long MIN_RTO = 100;
+    public static long MAX_RTO = 32000;
+    public static int SEND_QUEUE_CAPACITY = 256;
+    public static double MDB_SEND_RATE = 8 * Math.pow(10, 6);
+    public static double PACING_MIN_RATE = 256 * Math.pow(10, 3);
+    public static double PACING_MAX_RATE = 100 * Math.pow(10, 6);
+    public static double PACING_INCREASE = 64 * Math.pow(10, 3);
+    public static double PACING_BURST = 16 * MAX_MESSAGE_SIZE;
+    public static long PACING_DECREASE_INTERVAL = 500;
     public static int MAX_DELAY_STORED = 400;
     public static int MAX_DELAY_CHUNK = 400;
     public static int MAX_DELAY_REMOVED = 400;
+    public static int RESTORE_BATCH_SIZE = 64;
+    public static int REMOVED_BATCH_SIZE = 1024;
+    public static int REMOVED_BATCH_INTERVAL = 200;
+    public static int REMOVED_CHUNK_SPACING = 5;
     public static int MAX_DELAY_BACKUP_ENH = 1000;
     public static long MAX_STORAGE_SPACE = (long) (8*Math.pow(10,9));
-    public static int SAVING_INTERVAL = 3;
-
-    private final static char[] hex = "0123456789ABCDEF".toCharArray();
+    public static final String FILE_STORAGE = "file";
+    public static final String SEGMENT_STORAGE = "segment";
+    public static String STORAGE_BACKEND = System.getProperty("peer.storage", FILE_STORAGE);
+    public static long SEGMENT_SIZE = 64 * 1024 * 1024;
+    public static double SEGMENT_COMPACTION_RATIO = 0.5;
+    public static long CHUNK_CACHE_SIZE = Long.getLong("peer.cache", 64 * 1024 * 1024);
+    public static int CHUNK_CACHE_SEGMENTS = 16;
+    public static int STORAGE_LOCK_STRIPES = 64;
+    public static int STORAGE_READ_THREADS = 4;
+    public static final String NO_DURABILITY = "none";
+    public static final String BATCH_DURABILITY = "batch";
+    public static final String CHUNK_DURABILITY = "chunk";
+    public static String DURABILITY_MODE = System.getProperty("peer.durability", BATCH_DURABILITY);
+    public static int WRITE_BATCH_SIZE = 64;
+    public static int STATE_LOG_FLUSH_INTERVAL = 200;
+    public static long SNAPSHOT_LOG_SIZE = 8 * 1024 * 1024;
+    public static int SNAPSHOT_INTERVAL = 60 * 1000;
 
     /**
      * Parses the accessPoint to retrieve the host, address and port
@@ -53,7 +96,7 @@ public class Utils {
      * @param filePath - the file path
      * @return - hashed fileId
      */
-    public static String getFileID(String filePath) {
+    public static FileId getFileID(String filePath) {
         MessageDigest digest;
         try {
             digest = MessageDigest.getInstance("SHA-256");
@@ -62,22 +105,7 @@ public class Utils {
             return null;
         }
 
-        return bytesToHex(digest.digest(filePath.getBytes(StandardCharsets.UTF_8)));
-    }
-
-    /**
-     * Converts bytes into hex chars
-     * @param bytes - the hashed bytes
-     * @return the hex chars
-     */
-    private static String bytesToHex(byte[] bytes) {
-        char[] hexChars = new char[bytes.length * 2];
-        for (int j = 0; j < bytes.length; j++) {
-            int v = bytes[j] & 0xFF;
-            hexChars[j * 2] = hex[v >>> 4];
-            hexChars[j * 2 + 1] = hex[v & 0x0F];
-        }
-        return new String(hexChars);
+        return new FileId(digest.digest(filePath.getBytes(StandardCharsets.UTF_8)));
     }
 
     /**